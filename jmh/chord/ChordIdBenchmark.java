@@ -0,0 +1,113 @@
+package chord;
+
+import java.math.BigInteger;
+import java.util.*;
+import java.util.concurrent.*;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * JMH benchmarks for the identifier arithmetic on the lookup path.  ChordId is
+ * measured against the general purpose tools for the same job: comparing hashes
+ * with Arrays.compareUnsigned() on the raw bytes, and finding the start of a
+ * finger with BigInteger arithmetic modulo 2^160.  Decoding a ChordId from a
+ * hash is measured too, since every hash read off the wire goes through it.
+ *
+ * Run with -prof gc (as the jmh.run target does) to see the BigInteger version
+ * allocate on every call while ChordId comparisons allocate nothing.
+ *
+ * Usage: ant jmh.run -Djmh.args="ChordIdBenchmark"
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ChordIdBenchmark
+{
+	//Hashes cycled through, so the branches see a realistic mix
+	private static final int HASHES = 1024;
+	private static final long SEED = 42;
+
+	private static final BigInteger RING = BigInteger.ONE.shiftLeft(ChordId.BITS);
+
+	private byte[][] hashes;
+	private ChordId[] ids;
+	private BigInteger[] numbers;
+	private BigInteger[] powers;
+	private int next;
+
+	@Setup(Level.Trial)
+	public void generate()
+	{
+		Random random = new Random(SEED);
+
+		hashes = new byte[HASHES][];
+		ids = new ChordId[HASHES];
+		numbers = new BigInteger[HASHES];
+
+		for(int h = 0; h < HASHES; h++)
+		{
+			hashes[h] = new byte[ChordId.SIZE];
+			random.nextBytes(hashes[h]);
+			ids[h] = new ChordId(hashes[h]);
+			numbers[h] = new BigInteger(1, hashes[h]);
+		}
+
+		powers = new BigInteger[ChordId.BITS];
+		for(int p = 0; p < ChordId.BITS; p++)
+		{
+			powers[p] = BigInteger.ONE.shiftLeft(p);
+		}
+
+		next = 0;
+	}
+
+	private int advance()
+	{
+		next = (next + 3) & (HASHES - 1);
+		return next;
+	}
+
+	@Benchmark
+	public int compareBytes()
+	{
+		int h = advance();
+		return Arrays.compareUnsigned(hashes[h], hashes[(h + 1) & (HASHES - 1)]);
+	}
+
+	@Benchmark
+	public int compareId()
+	{
+		int h = advance();
+		return ids[h].compareTo(ids[(h + 1) & (HASHES - 1)]);
+	}
+
+	@Benchmark
+	public boolean isInRangeId()
+	{
+		int h = advance();
+		return ids[h].isInRange(ids[(h + 1) & (HASHES - 1)], false, ids[(h + 2) & (HASHES - 1)], true);
+	}
+
+	@Benchmark
+	public ChordId decodeId()
+	{
+		return new ChordId(hashes[advance()]);
+	}
+
+	@Benchmark
+	public BigInteger fingerStartBigInteger()
+	{
+		int h = advance();
+		return numbers[h].add(powers[h % ChordId.BITS]).mod(RING);
+	}
+
+	@Benchmark
+	public ChordId fingerStartId()
+	{
+		int h = advance();
+		return ids[h].addPowerOfTwo(h % ChordId.BITS);
+	}
+}
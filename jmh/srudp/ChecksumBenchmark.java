@@ -0,0 +1,62 @@
+package srudp;
+
+import java.nio.*;
+import java.util.concurrent.*;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * JMH benchmark for encoding a DATA packet and decoding it again under each
+ * IntegrityMode, for a few payload sizes.  Decoding checks the integrity of the
+ * packet, so one operation computes it twice.
+ *
+ * Usage: ant jmh.run -Djmh.args="ChecksumBenchmark"
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ChecksumBenchmark
+{
+	@Param({"64", "512", "1400"})
+	public int payloadSize;
+
+	@Param({"SHA1", "CRC32C"})
+	public IntegrityMode mode;
+
+	private ByteBuffer payload;
+	private int seq;
+
+	@Setup(Level.Trial)
+	public void fill()
+	{
+		payload = ByteBuffer.allocate(payloadSize);
+		for(int b = 0; b < payloadSize; b++)
+		{
+			payload.put((byte)b);
+		}
+		payload.flip();
+
+		seq = 0;
+	}
+
+	@Benchmark
+	public int encodeDecode()
+	{
+		seq++;
+
+		ByteBuffer packet = new Packet(Packet.DATA, (byte)0, 1, seq, seq, 0, payload, mode).encode();
+		Packet decoded = Packet.decode(packet);
+
+		if(decoded == null)
+		{
+			throw new IllegalStateException("Packet " + seq + " failed its integrity check");
+		}
+
+		int decodedSeq = decoded.seq;
+		decoded.release();
+		return decodedSeq;
+	}
+}
@@ -0,0 +1,141 @@
+package srudp;
+
+import java.net.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * JMH benchmark for how retransmission copes with loss: one operation pushes a
+ * batch of messages through RUDPSocket.write() over a SimulatedNetwork losing
+ * datagrams at a few rates.  The network is seeded, so the same datagrams are
+ * lost on every run, and every operation gets a fresh pair of sockets on a port
+ * of its own so estimates from one do not carry over.
+ *
+ * Messages the batch reports as undelivered are counted in undeliveredMessages
+ * rather than failing the run, along with the datagrams sent and the
+ * retransmission timeouts it took.
+ *
+ * Usage: ant jmh.run -Djmh.args="LossBenchmark"
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 1)
+@Measurement(iterations = 3)
+@Fork(1)
+@State(Scope.Benchmark)
+public class LossBenchmark
+{
+	private static final int MESSAGE_SIZE = 1000;
+	private static final long SEED = 42;
+
+	@Param({"0", "0.01", "0.05", "0.10"})
+	public double loss;
+
+	@Param({"2000"})
+	public int messages;
+
+	//Latency of the simulated network, with a fifth of it again as jitter
+	@Param({"5"})
+	public long latency;
+
+	private List<byte[]> batch;
+	private int port;
+	private SimulatedNetwork network;
+	private RUDPServerSocket server;
+	private RUDPSocket client;
+
+	/**
+	 * What each batch cost besides its time
+	 */
+	@State(Scope.Thread)
+	@AuxCounters(AuxCounters.Type.EVENTS)
+	public static class Counters
+	{
+		public long undeliveredMessages;
+		public long datagramsSent;
+		public long retransmitTimeouts;
+
+		@Setup(Level.Iteration)
+		public void reset()
+		{
+			undeliveredMessages = 0;
+			datagramsSent = 0;
+			retransmitTimeouts = 0;
+		}
+	}
+
+	@Setup(Level.Trial)
+	public void generate()
+	{
+		batch = new ArrayList<byte[]>(messages);
+		Random random = new Random(SEED);
+
+		for(int m = 0; m < messages; m++)
+		{
+			byte[] message = new byte[MESSAGE_SIZE];
+			random.nextBytes(message);
+			batch.add(message);
+		}
+
+		port = 7000;
+	}
+
+	@Setup(Level.Invocation)
+	public void open() throws Exception
+	{
+		InetAddress address = InetAddress.getLoopbackAddress();
+
+		network = new SimulatedNetwork(SEED, address);
+		network.setLoss(loss);
+		network.setLatency(latency);
+		network.setJitter(latency / 5);
+
+		final RUDPServerSocket reading = new RUDPServerSocket(++port, 1, network);
+		Thread reader = new Thread(new Runnable()
+		{
+			public void run()
+			{
+				try
+				{
+					while(true)
+					{
+						reading.receive().release();
+					}
+				}
+				catch (Exception e)
+				{
+				}
+			}
+		});
+		reader.setDaemon(true);
+		reader.start();
+
+		server = reading;
+		client = new RUDPSocket(address, port, network);
+	}
+
+	@TearDown(Level.Invocation)
+	public void close() throws Exception
+	{
+		client.close();
+		server.close();
+	}
+
+	@Benchmark
+	public void writeBatch(Counters counters) throws Exception
+	{
+		try
+		{
+			client.write(batch);
+		}
+		catch (UndeliveredException e)
+		{
+			counters.undeliveredMessages += e.getUndelivered().size();
+		}
+
+		counters.datagramsSent += network.getSent();
+		counters.retransmitTimeouts += client.getRTTEstimator().getRetransmitTimeouts();
+	}
+}
@@ -0,0 +1,128 @@
+package srudp;
+
+import java.net.*;
+import java.nio.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * JMH benchmarks for a message written with RUDPSocket.write() and read back with
+ * RUDPServerSocket.read(), over loopback UDP and over a SimulatedNetwork losing
+ * datagrams at a few rates.  write() only returns once the message has been
+ * acknowledged, so the time of one operation is a round trip.  A write that fails
+ * is made again within the same operation, so failures slow the score down rather
+ * than passing for quick round trips, and are reported as failedWrites.
+ *
+ * Throughput mode gives messages per second and sample mode gives the p50/p99
+ * round trip.  Run with -prof gc (as the jmh.run target does) for the bytes
+ * allocated per message, counted across every thread.
+ *
+ * Usage: ant jmh.run, or ant jmh.run -Djmh.args="TransportBenchmark -p loss=udp"
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class TransportBenchmark
+{
+	//Seed for the simulated network, so the same datagrams are lost on every run
+	private static final long SEED = 42;
+
+	//Latency of the simulated network, to make room for reordering
+	private static final long SIMULATED_LATENCY = 1;	//milliseconds
+
+	@Param({"64", "1024", "8192"})
+	public int payloadSize;
+
+	//"udp" for loopback UDP, otherwise the loss rate of a simulated network
+	@Param({"udp", "0", "0.01", "0.05"})
+	public String loss;
+
+	private RUDPServerSocket server;
+	private RUDPSocket client;
+	private byte[] payload;
+	private ByteBuffer readBuffer;
+
+	/**
+	 * Writes that failed because a packet ran out of retransmissions, which only
+	 * happens at high loss rates, counted apart from the round trips
+	 */
+	@State(Scope.Thread)
+	@AuxCounters(AuxCounters.Type.EVENTS)
+	public static class Failures
+	{
+		public long failedWrites;
+
+		@Setup(Level.Iteration)
+		public void reset()
+		{
+			failedWrites = 0;
+		}
+	}
+
+	@Setup(Level.Trial)
+	public void open() throws Exception
+	{
+		Transport transport;
+		InetAddress address = InetAddress.getLoopbackAddress();
+
+		if(loss.equals("udp"))
+		{
+			transport = new UDPTransport();
+		}
+		else
+		{
+			SimulatedNetwork network = new SimulatedNetwork(SEED, address);
+			network.setLoss(Double.parseDouble(loss));
+			network.setLatency(SIMULATED_LATENCY);
+			transport = network;
+		}
+
+		//A port per trial keeps estimates and congestion windows from carrying over
+		int port = 20000 + new Random().nextInt(20000);
+
+		//Shards acknowledge on their own threads, so read() can follow write() on
+		//the benchmark thread
+		server = new RUDPServerSocket(port, 2, transport);
+		client = new RUDPSocket(address, port, transport);
+
+		//Random contents so compression has nothing to gain
+		payload = new byte[payloadSize];
+		new Random(SEED).nextBytes(payload);
+		readBuffer = ByteBuffer.allocate(payloadSize);
+	}
+
+	@TearDown(Level.Trial)
+	public void close() throws Exception
+	{
+		client.close();
+		server.close();
+	}
+
+	@Benchmark
+	public int writeRead(Failures failures) throws Exception
+	{
+		//Writing again until the message is acknowledged.  A failed write may still
+		//have been delivered, in which case the read below takes the earlier copy.
+		while(true)
+		{
+			try
+			{
+				client.write(payload);
+				break;
+			}
+			catch (Exception e)
+			{
+				failures.failedWrites++;
+			}
+		}
+
+		readBuffer.clear();
+		server.read(readBuffer);
+		return readBuffer.remaining();
+	}
+}
@@ -1,10 +1,12 @@
 package chord;
 
 import java.io.*;
-import java.math.BigInteger;
 import java.net.*;
 import java.nio.*;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.function.*;
 import java.util.regex.*;
 import java.security.*;
 import srudp.*;
@@ -17,14 +19,103 @@ public class Chord
 	private final int CHECK_PREDECESSOR_TIMER_DELAY = 2*1000; 	//milliseconds
 	private final int FIX_FINGERS_TIMER_DELAY = 200; 			//milliseconds
 	private final int SUCCESSOR_LIST_SIZE = 3;
+	private final int LOOKUP_CONCURRENCY = 3;
+	private final int LOOKUP_STALL_DELAY = 100;					//milliseconds
+	private final int FAILED_NODE_TIMEOUT = 5 * STABILIZE_TIMER_DELAY;	//milliseconds
+	private final int FAILED_NODE_THRESHOLD = 2;
+	private final int LOOKUP_CACHE_TTL = 60*1000;				//milliseconds
+	private final int LOOKUP_CACHE_SIZE = 1024;
+	private final int RECEIVE_THREADS = Runtime.getRuntime().availableProcessors();
+	private final int HANDOFF_ATTEMPTS = 3;
 
 	private int port;
-	private Map<String, ChordData> dataMap;
-	private List<ChordNode> fingerTable;
+	private ChordDataMap dataMap;
+	private AtomicReference<FingerTable> fingerTable;
 	private LinkedList<ChordNode> successorList;
+	private ChordId[] fingerStarts;
 	private int nextFingerToFix;
 	private ChordNode predecessor, key, successor;
 	private RUDPServerSocket sock;
+	private MessageDispatcher dispatcher;
+	private Map<ChordNode, NodeFailures> failedNodes;
+	private LookupCache lookupCache;
+	private volatile ChordNode pendingHandoff;
+	private List<Timer> timers;
+	private volatile boolean closed;
+
+	/**
+	 * Lookup requests a node has failed in a row
+	 */
+	private static class NodeFailures
+	{
+		int count;
+		long lastFailed;
+	}
+
+	/**
+	 * What a node asked during a lookup knows: either the successor of the hash, or
+	 * nodes closer to the hash than itself
+	 */
+	private static class LookupAnswer
+	{
+		ChordNode node;
+		ChordNode successor;
+		List<ChordNode> closer;
+
+		/**
+		 * Answer of a node that could not be reached
+		 * @param node node asked
+		 */
+		LookupAnswer(ChordNode node)
+		{
+			this.node = node;
+			successor = null;
+			closer = null;
+		}
+
+		/**
+		 * Reads the answer out of a closest nodes reply
+		 * @param node node asked
+		 * @param response reply, starting with the message ID
+		 * @throws Exception Mal-formed reply
+		 */
+		LookupAnswer(ChordNode node, ByteBuffer response) throws Exception
+		{
+			this.node = node;
+			response.order(ByteOrder.BIG_ENDIAN);
+			response.get(); //waste the message ID
+			boolean found = response.get() != 0;
+
+			successor = null;
+			closer = new ArrayList<ChordNode>();
+
+			while(response.remaining() >= 6)
+			{
+				byte[] IPAddress = new byte[4];
+				short port;
+
+				response.get(IPAddress);
+				port = response.getShort();
+
+				closer.add(new ChordNode(InetAddress.getByAddress(IPAddress), port));
+			}
+
+			if (found)
+			{
+				if (closer.isEmpty())
+				{
+					throw new Exception("Expected the successor in closest_nodes_reply");
+				}
+
+				successor = closer.remove(0);
+			}
+		}
+
+		boolean failed()
+		{
+			return closer == null;
+		}
+	}
 
 	public static void main(String[] args) throws Exception
 	{
@@ -156,6 +247,18 @@ public class Chord
 		@param port the port to listen to locally for incoming messages
 	*/
 	public Chord(int port) throws Exception
+	{
+		this(port, MessageDispatcher.DEFAULT_WORKERS, MessageDispatcher.DEFAULT_BACKLOG);
+	}
+
+	/**
+		Creates a node to interact with a chord ring
+		@param port the port to listen to locally for incoming messages
+		@param workers most incoming messages handled at once
+		@param backlog most incoming messages waiting to be handled before further
+		ones are shed
+	*/
+	public Chord(int port, int workers, int backlog) throws Exception
 	{
 		this.port = port;
 		key = new ChordNode(InetAddress.getLocalHost(), (short)port);
@@ -163,10 +266,12 @@ public class Chord
 		predecessor = null;
 		successor = key;
 
-		fingerTable = new ArrayList<ChordNode>(FINGER_TABLE_SIZE);
+		fingerTable = new AtomicReference<FingerTable>(new FingerTable(key, FINGER_TABLE_SIZE));
+		//Finger i points at the successor of key + 2^i
+		fingerStarts = new ChordId[FINGER_TABLE_SIZE];
 		for (int f = 0; f < FINGER_TABLE_SIZE; f++)
 		{
-			fingerTable.add(key);
+			fingerStarts[f] = key.getId().addPowerOfTwo(f);
 		}
 		nextFingerToFix = 0;
 
@@ -176,9 +281,33 @@ public class Chord
 			successorList.add(key);
 		}
 
-		dataMap = new HashMap<String, ChordData>();
+		dataMap = new ChordDataMap();
+		failedNodes = new HashMap<ChordNode, NodeFailures>();
+		lookupCache = new LookupCache(LOOKUP_CACHE_TTL, LOOKUP_CACHE_SIZE);
 
-		sock = new RUDPServerSocket(port);
+		sock = new RUDPServerSocket(port, RECEIVE_THREADS);
+		dispatcher = new MessageDispatcher(port, workers, backlog);
+		timers = new ArrayList<Timer>();
+		closed = false;
+	}
+
+	/**
+		Gives the pool handling incoming messages, for its queue depth and the number
+		of messages shed
+		@return message dispatcher
+	*/
+	public MessageDispatcher getDispatcher()
+	{
+		return dispatcher;
+	}
+
+	/**
+		Gives the cache of which nodes own which ranges, used by get()
+		@return lookup cache
+	*/
+	public LookupCache getLookupCache()
+	{
+		return lookupCache;
 	}
 
 	/**
@@ -187,17 +316,24 @@ public class Chord
 	*/
 	public String fingerTableToString()
 	{
-		String str = "";
+		return fingerTable.get().toString();
+	}
+
+	/**
+	 * Points a finger at a node by publishing a new snapshot of the finger table.
+	 * Lookups carry on reading the snapshot they started with.
+	 * @param index finger to change
+	 * @param node node the finger should point at
+	 */
+	private void setFinger(int index, ChordNode node)
+	{
+		FingerTable current;
 
-		synchronized(fingerTable)
+		do
 		{
-			for(int i = 0; i < FINGER_TABLE_SIZE; i++)
-			{
-				str += "[" + i + "] " + fingerTable.get(i).toString() + "\n";
-			}
+			current = fingerTable.get();
 		}
-
-		return str;
+		while(!fingerTable.compareAndSet(current, current.with(index, node)));
 	}
 	
 	/**
@@ -230,14 +366,17 @@ public class Chord
 			}
 		}
 		
+		str += "\tDispatcher:\n";
+		str += "\t\t" + dispatcher.toString() + "\n";
+		
+		str += "\tLookup Cache:\n";
+		str += "\t\t" + lookupCache.toString() + "\n";
+		
 		str += "\tData:\n";
 		
-		synchronized(dataMap)
+		for(ChordData data : dataMap.values())
 		{
-			for(ChordData data : dataMap.values())
-			{
-				str += "\t\t" + data.toString() + "\n";
-			}
+			str += "\t\t" + data.toString() + "\n";
 		}
 		
 		return str;
@@ -253,42 +392,62 @@ public class Chord
 		//Setting pu the new successor
 		synchronized(successorList)
 		{
-			synchronized(fingerTable)
-			{
-				this.successor = successor;
-				successorList.set(0, successor);
-				fingerTable.set(0, successor);
-			}
+			this.successor = successor;
+			successorList.set(0, successor);
+			setFinger(0, successor);
 		}
 
-		//Generating the data to send to the new successor
-		LinkedList<ByteBuffer> sendList = new LinkedList<ByteBuffer>();
+		//Sending all of the data to the new successor, and having stabilize() try
+		//again if it did not all get there
+		pendingHandoff = handOff(successor, dataMap.values()) ? null : successor;
+	}
+
+	/**
+	 * Sends data to another node to hold.  Messages the batch reports as undelivered
+	 * are sent again on their own, since holding the same data twice is harmless.
+	 * @param node node to send to
+	 * @param data data to send
+	 * @return true if all of the data was delivered
+	 */
+	private boolean handOff(ChordNode node, List<ChordData> data)
+	{
+		List<ByteBuffer> sendList = new ArrayList<ByteBuffer>(data.size());
 
-		synchronized(dataMap)
+		for(ChordData item : data)
 		{
-			for(ChordData data : dataMap.values())
-			{
-				ByteBuffer toSend = ByteBuffer.allocate(HASH_SIZE + data.getData().length);
-				toSend.put(data.getHash());
-				toSend.put(data.getData());
-				sendList.add(toSend);
-			}
+			ByteBuffer toSend = ByteBuffer.allocate(HASH_SIZE + item.getData().length);
+			toSend.put(item.getHash());
+			toSend.put(item.getData());
+			sendList.add(toSend);
 		}
 
-		//Sending all of the necessary data to the new successor
-		try
+		for(int attempt = 0; attempt < HANDOFF_ATTEMPTS; attempt++)
 		{
-			successor.connect();
-			for(ByteBuffer toSend : sendList)
+			try
 			{
-				successor.sendMessage(ChordNode.MessageType.PUT, toSend);
+				node.sendMessages(ChordNode.MessageType.PUT, sendList);
+				return true;
+			}
+			//Only some packets ran out of retransmissions, so only their messages go again
+			catch (UndeliveredException e)
+			{
+				List<ByteBuffer> undelivered = new ArrayList<ByteBuffer>();
+
+				for(int message : e.getUndelivered())
+				{
+					undelivered.add(sendList.get(message));
+				}
+
+				sendList = undelivered;
+			}
+			//Node stopped answering altogether
+			catch (Exception e)
+			{
+				return false;
 			}
-			successor.close();
-		}
-		catch (Exception e)
-		{
-			successor.close();
 		}
+
+		return false;
 	}
 
 	/**
@@ -299,7 +458,7 @@ public class Chord
 	public void listen() throws Exception
 	{
 		//Stabilize timer task
-		(new Timer()).scheduleAtFixedRate(new TimerTask()
+		startTimer().scheduleAtFixedRate(new TimerTask()
 		{
 			public void run()
 			{
@@ -316,7 +475,7 @@ public class Chord
 		}, 1000, STABILIZE_TIMER_DELAY);
 
 		//CheckPredecessor timer task
-		(new Timer()).scheduleAtFixedRate(new TimerTask()
+		startTimer().scheduleAtFixedRate(new TimerTask()
 		{
 			public void run()
 			{
@@ -325,7 +484,7 @@ public class Chord
 		}, 1000, CHECK_PREDECESSOR_TIMER_DELAY);
 
 		//FixFingers timer task
-		(new Timer()).scheduleAtFixedRate(new TimerTask()
+		startTimer().scheduleAtFixedRate(new TimerTask()
 		{
 			public void run()
 			{
@@ -347,24 +506,20 @@ public class Chord
 		{
 			public void run()
 			{
-				ByteBuffer readBuffer = ByteBuffer.allocateDirect(64*1024);
-				
 				while(true)
 				{
-					readBuffer.clear();
-					
 					try
 					{
-						//Reading the next message from the socket server
-						final RUDPSocket client = sockCopy.read(readBuffer);
-						final ByteBuffer message = ByteBuffer.allocate(readBuffer.remaining());
-						
+						//Reading the next message from the socket server, however large.  The
+						//message is handled straight out of the pooled buffer it arrived in.
+						final RUDPMessage received = sockCopy.receive();
+						final RUDPSocket client = received.getSender();
+						final ByteBuffer message = received.getPayload();
+
 						message.order(ByteOrder.BIG_ENDIAN);
-						message.put(readBuffer);
-						message.flip();
 
-						//Starting a new thread to handle message processing
-						new Thread(new Runnable()
+						//Handing the message to a worker, or dropping it if the node is overloaded
+						boolean dispatched = dispatcher.dispatch(new Runnable()
 						{
 							public void run()
 							{
@@ -377,11 +532,26 @@ public class Chord
 									System.out.println("Exception: " + e);
 									e.printStackTrace();
 								}
+								finally
+								{
+									received.release();
+								}
 							}
-						}).start();
+						});
+
+						if(!dispatched)
+						{
+							received.release();
+						}
 					}
 					catch (Exception e)
 					{
+						//Socket closed along with the node
+						if(closed)
+						{
+							return;
+						}
+
 						System.out.println("Exception: " + e);
 						e.printStackTrace();
 						System.exit(-1);
@@ -391,6 +561,43 @@ public class Chord
 		}).start();
 	}
 
+	/**
+	 * Creates a timer that close() will cancel
+	 * @return timer
+	 */
+	private Timer startTimer()
+	{
+		Timer timer = new Timer();
+
+		synchronized(timers)
+		{
+			timers.add(timer);
+		}
+
+		return timer;
+	}
+
+	/**
+	 * Stops the node without handing its data to anyone, as if it had crashed.
+	 * The rest of the ring finds out the way it would about a crash.
+	 * @throws Exception on network I/O error
+	 */
+	public void close() throws Exception
+	{
+		closed = true;
+
+		synchronized(timers)
+		{
+			for(Timer timer : timers)
+			{
+				timer.cancel();
+			}
+		}
+
+		dispatcher.shutdown();
+		sock.close();
+	}
+
 	/**
 	 * Creating the ring initially
 	 * @throws Exception
@@ -413,8 +620,7 @@ public class Chord
 		buffer.put(key.getHash());
 
 		node.connect();
-		node.sendMessage(ChordNode.MessageType.SUCCESSOR, buffer);
-		buffer = node.getResponse();
+		buffer = node.sendRequest(ChordNode.MessageType.SUCCESSOR, buffer);
 		node.close();
 
 		byte[] IPAddress = new byte[4];
@@ -434,65 +640,93 @@ public class Chord
 	 */
 	public Collection<ChordData> getLocalData()
 	{
-		synchronized(dataMap)
-		{
-			return new LinkedList(dataMap.values());
-		}
+		return dataMap.values();
 	}
 
 	/**
-	 * Getting the data that corresponds to the hash from the ring
+	 * Getting the data that corresponds to the hash from the ring.  The node holding
+	 * it is taken from the lookup cache if known; should that node fail to answer or
+	 * not have the data, it is looked up again in case the ring has changed.
 	 * @param hash hash key for the data
 	 * @return the data that corresponds to the hash
 	 * @throws Exception Data could not be found
 	 */
 	public ChordData get(byte[] hash) throws Exception
 	{
-		ChordNode node = findSuccessor(hash);
-	
-		ByteBuffer message = ByteBuffer.allocate(HASH_SIZE);
-		message.put(hash);
-		
-		ByteBuffer response = null;
+		ChordId id = new ChordId(hash);
+		ChordNode node = lookupCache.get(id);
+		boolean cached = (node != null);
 
-		//Connecting to the node who holds the data
-		try
-		{
-			node.connect();
-			node.sendMessage(ChordNode.MessageType.GET, message);
-			response = node.getResponse();
-			node.close();
-		}
-		catch (Exception e)
+		while(true)
 		{
-			node.close();
-			throw new Exception("Could not connect to node with data");
-		}
-		
-		ChordNode.MessageType messageID = ChordNode.MessageType.fromInt((int)response.get() & 0xFF);
+			if (node == null)
+			{
+				node = findSuccessor(id);
+			}
 
-		//Node return the data
-		if (messageID == ChordNode.MessageType.GET_REPLY)
-		{
-			byte[] toReturn = new byte[response.remaining()];
-			response.get(toReturn);
-			return new ChordData(hash, toReturn);
-		}
-		//Node did not have the data
-		else if (messageID == ChordNode.MessageType.GET_REPLY_INVALID)
-		{
-			throw new Exception("Data does not exist");
-		}
-		//Unexpected message
-		else
-		{
-			throw new Exception("Expected get_reply or get_reply_invalid");
+			ByteBuffer message = ByteBuffer.allocate(HASH_SIZE);
+			message.put(hash);
+			
+			ByteBuffer response = null;
+
+			//Connecting to the node who holds the data
+			try
+			{
+				node.connect();
+				response = node.sendRequest(ChordNode.MessageType.GET, message);
+				node.close();
+			}
+			catch (Exception e)
+			{
+				node.close();
+				lookupCache.invalidate(node);
+
+				if (cached)
+				{
+					cached = false;
+					node = null;
+					continue;
+				}
+
+				throw new Exception("Could not connect to node with data");
+			}
+			
+			ChordNode.MessageType messageID = ChordNode.MessageType.fromInt((int)response.get() & 0xFF);
+
+			//Node return the data
+			if (messageID == ChordNode.MessageType.GET_REPLY)
+			{
+				byte[] toReturn = new byte[response.remaining()];
+				response.get(toReturn);
+				return new ChordData(hash, toReturn);
+			}
+			//Node did not have the data, which a node we remembered may no longer be
+			//responsible for
+			else if (messageID == ChordNode.MessageType.GET_REPLY_INVALID)
+			{
+				if (cached)
+				{
+					lookupCache.invalidate(node);
+					cached = false;
+					node = null;
+					continue;
+				}
+
+				throw new Exception("Data does not exist");
+			}
+			//Unexpected message
+			else
+			{
+				throw new Exception("Expected get_reply or get_reply_invalid");
+			}
 		}
 	}
 
 	/**
 	 * Putting the given data onto the ring, or appending it to data that
-	 * already exists on the ring
+	 * already exists on the ring.  The owner is always looked up afresh rather
+	 * than taken from the lookup cache, since a put gets no answer and a node that
+	 * stopped being responsible for the key would take the data without saying so.
 	 * @param toPut data to put onto the ring
 	 * @param append if the data should be appended to existing data
 	 * @throws Exception Put operation failed
@@ -505,11 +739,21 @@ public class Chord
 		ByteBuffer toSend = ByteBuffer.allocate(HASH_SIZE + data.length);
 		toSend.put(hash);
 		toSend.put(data);
-		
-		ChordNode node = findSuccessor(hash);
-		node.connect();
-		node.sendMessage(append ? ChordNode.MessageType.APPEND : ChordNode.MessageType.PUT, toSend);
-		node.close();
+
+		ChordNode node = findSuccessor(toPut.getId());
+
+		try
+		{
+			node.connect();
+			node.sendMessage(append ? ChordNode.MessageType.APPEND : ChordNode.MessageType.PUT, toSend);
+			node.close();
+		}
+		catch (Exception e)
+		{
+			node.close();
+			lookupCache.invalidate(node);
+			throw e;
+		}
 	}
 
 	/**
@@ -518,121 +762,267 @@ public class Chord
 	 */
 	public void remove(byte[] hash)
 	{
-		synchronized(dataMap)
-		{
-			dataMap.remove(new String(hash));
-		}
+		dataMap.remove(new ChordId(hash));
 	}
 
 	/**
-	 * Finding the immediate successor to a given hash value
+	 * Finding the immediate successor to a given hash value.  The lookup is
+	 * iterative: we ask the closest nodes we know of preceding the hash for nodes
+	 * closer still, keeping LOOKUP_CONCURRENCY requests in flight and following the
+	 * closest node learnt so far whenever one comes back.  A dead node only holds up
+	 * one of the requests, and once LOOKUP_STALL_DELAY passes without an answer
+	 * another node is asked alongside it.  Nodes that failed to answer
+	 * FAILED_NODE_THRESHOLD times in a row are passed over in later lookups until
+	 * they have had time to be repaired out of the ring, so lookups stop waiting on
+	 * dead nodes while a node that merely dropped one request is still asked.
 	 * @param hash hash value to find the successor of
 	 * @return the immediate successor to the hash value
-	 * @throws Exception Node could not be formed from the return IP,Port pair
+	 * @throws Exception Node could not be formed from the return IP,Port pair, or no
+	 * node that could be reached knew the successor
 	 */
-	private ChordNode findSuccessor(byte[] hash) throws Exception
+	ChordNode findSuccessor(final ChordId hash) throws Exception
 	{
 		//Successor to the hash is our successor
-		if (ChordNode.isInRange(hash, key.getHash(), false, successor.getHash(), true))
+		if (hash.isInRange(key.getId(), false, successor.getId(), true))
 		{
 			return successor;
 		}
-		//Searching for the closest node to the hash, then querying them
-		else
+
+		//Nodes preceding the hash, closest to it first
+		SortedSet<ChordNode> candidates = findCandidates(hash);
+		Set<ChordNode> queried = new HashSet<ChordNode>();
+		BlockingQueue<LookupAnswer> answers = new LinkedBlockingQueue<LookupAnswer>();
+		int outstanding = 0;
+
+		while(true)
 		{
-			ByteBuffer buffer = ByteBuffer.allocate(HASH_SIZE);
-			buffer.put(hash);
+			//Keeping the requests in flight topped up
+			ChordNode next;
+			while(outstanding < LOOKUP_CONCURRENCY && (next = nextCandidate(candidates, queried)) != null)
+			{
+				queryClosestNodes(next, hash, answers);
+				outstanding++;
+			}
+
+			//Every node we know of preceding the hash failed to answer or is being
+			//passed over, and our successor is not the answer
+			if (outstanding == 0)
+			{
+				throw new Exception("Could not find the successor of " + hash);
+			}
 
-			ChordNode closest = findClosestNode(hash);
+			LookupAnswer answer = answers.poll(LOOKUP_STALL_DELAY, TimeUnit.MILLISECONDS);
 
-			//Looping in order to find a the closest node that responds
-			while(true)
+			//Nothing back yet, so asking one more node alongside the slow ones
+			if (answer == null)
 			{
-				//Case where we are actually the closest node
-				if(closest.equals(key))
+				if ((next = nextCandidate(candidates, queried)) != null)
 				{
-					return successor;
+					queryClosestNodes(next, hash, answers);
+					outstanding++;
 				}
 
-				//Asking the node for it's successor
-				try
-				{
-					closest.connect();
-					closest.sendMessage(ChordNode.MessageType.SUCCESSOR, buffer);
-					buffer = closest.getResponse();
-					closest.close();
-					break;
-				}
-				//Finding the next closest node
-				catch (Exception e)
+				continue;
+			}
+
+			outstanding--;
+
+			if (answer.failed())
+			{
+				long now = System.currentTimeMillis();
+
+				lookupCache.invalidate(answer.node);
+
+				synchronized(failedNodes)
 				{
-					closest.close();
-					closest = findClosestNode(closest.getHash(), closest);
+					//Forgetting nodes that have long been repaired out of the ring
+					Iterator<NodeFailures> failed = failedNodes.values().iterator();
+					while(failed.hasNext())
+					{
+						if (now - failed.next().lastFailed >= FAILED_NODE_TIMEOUT)
+						{
+							failed.remove();
+						}
+					}
+
+					NodeFailures failures = failedNodes.get(answer.node);
+					if (failures == null)
+					{
+						failures = new NodeFailures();
+						failedNodes.put(answer.node, failures);
+					}
+
+					failures.count++;
+					failures.lastFailed = now;
 				}
+
+				continue;
 			}
 
-			byte[] IPAddress = new byte[4];
-			short port;
+			synchronized(failedNodes)
+			{
+				failedNodes.remove(answer.node);
+			}
 
-			buffer.order(ByteOrder.BIG_ENDIAN);
-			buffer.get(); //waste the message ID
-			buffer.get(IPAddress);
-			port = buffer.getShort();
+			//Node asked knows the successor, which holds everything after that node
+			if (answer.successor != null)
+			{
+				lookupCache.put(answer.node.getId(), answer.successor);
+				return answer.successor;
+			}
 
-			return new ChordNode(InetAddress.getByAddress(IPAddress), port);
+			addCandidates(candidates, answer.closer, hash);
 		}
 	}
 
 	/**
-	 * Finds the position of the node in the fingertable which is closest to the hash value
-	 * @param hash hash value
-	 * @return closest node
+	 * Picks the next node to ask during a lookup
+	 * @param candidates nodes preceding the hash, closest first
+	 * @param queried nodes already asked, which the picked node is added to
+	 * @return closest node not yet asked that has not failed repeatedly of late, or
+	 * null if there is none
 	 */
-	private ChordNode findClosestNode(byte[] hash)
+	private ChordNode nextCandidate(SortedSet<ChordNode> candidates, Set<ChordNode> queried)
 	{
-		synchronized(fingerTable)
+		long now = System.currentTimeMillis();
+
+		synchronized(failedNodes)
 		{
-			for (int i = (FINGER_TABLE_SIZE - 1); i >= 0; i--)
+			for (ChordNode candidate : candidates)
 			{
-				ChordNode temp = fingerTable.get(i);
-				if (ChordNode.isInRange(temp.getHash(), key.getHash(), false, hash, false))
+				if (queried.contains(candidate))
 				{
-					return temp;
+					continue;
 				}
+
+				NodeFailures failures = failedNodes.get(candidate);
+
+				if (failures != null && failures.count >= FAILED_NODE_THRESHOLD &&
+					now - failures.lastFailed < FAILED_NODE_TIMEOUT)
+				{
+					continue;
+				}
+
+				queried.add(candidate);
+				return candidate;
 			}
 		}
 
-		return key;
+		return null;
 	}
 
 	/**
-	 * Finds the position of the node in the fingertable which is closest to the hash value
-	 * @param hash hash value
-	 * @param nodeToIgnore search happens below the first case of this node in the table
-	 * @return closest node
+	 * Collects the nodes in the finger table and successor list that precede a hash
+	 * @param hash hash value being looked up
+	 * @return nodes preceding the hash, closest to it first
 	 */
-	private ChordNode findClosestNode(byte[] hash, ChordNode nodeToIgnore)
+	private SortedSet<ChordNode> findCandidates(final ChordId hash)
 	{
-		synchronized(fingerTable)
+		SortedSet<ChordNode> candidates = new TreeSet<ChordNode>(new Comparator<ChordNode>()
 		{
-			int limit = fingerTable.indexOf(nodeToIgnore) - 1;
-
-			if(limit == -1)
+			public int compare(ChordNode a, ChordNode b)
 			{
-				return key;
+				if (a.getId().equals(b.getId()))
+				{
+					return 0;
+				}
+
+				return a.getId().isInRange(b.getId(), false, hash, false) ? -1 : 1;
 			}
+		});
+
+		addCandidates(candidates, findClosestNodes(hash, FINGER_TABLE_SIZE), hash);
+		synchronized(successorList)
+		{
+			addCandidates(candidates, successorList, hash);
+		}
+
+		return candidates;
+	}
 
-			for (int i = limit; i >= 0; i--)
+	/**
+	 * Picks the nodes a node looking up a hash should ask next
+	 * @param hash hash value being looked up
+	 * @param count most nodes to return
+	 * @return closest nodes preceding the hash that have not failed repeatedly of
+	 * late, closest first
+	 */
+	private List<ChordNode> findClosestLiveNodes(ChordId hash, int count)
+	{
+		List<ChordNode> closest = new ArrayList<ChordNode>(count);
+		Set<ChordNode> passed = new HashSet<ChordNode>();
+		SortedSet<ChordNode> candidates = findCandidates(hash);
+		ChordNode next;
+
+		while(closest.size() < count && (next = nextCandidate(candidates, passed)) != null)
+		{
+			closest.add(next);
+		}
+
+		return closest;
+	}
+
+	/**
+	 * Asks a node for the nodes it knows of closest to the hash, without waiting
+	 * for it to answer
+	 * @param node node to ask
+	 * @param hash hash value being looked up
+	 * @param answers queue the answer is added to, failed if the node does not
+	 * answer properly
+	 */
+	private void queryClosestNodes(final ChordNode node, ChordId hash, final BlockingQueue<LookupAnswer> answers)
+	{
+		ByteBuffer request = ByteBuffer.allocate(HASH_SIZE);
+		hash.put(request);
+
+		node.sendRequestAsync(ChordNode.MessageType.CLOSEST_NODES, request).whenComplete(new BiConsumer<ByteBuffer, Throwable>()
+		{
+			public void accept(ByteBuffer response, Throwable error)
 			{
-				ChordNode temp = fingerTable.get(i);
-				if (ChordNode.isInRange(temp.getHash(), key.getHash(), false, hash, false))
+				LookupAnswer answer = new LookupAnswer(node);
+
+				if (error == null)
 				{
-					return temp;
+					try
+					{
+						answer = new LookupAnswer(node, response);
+					}
+					catch (Exception e)
+					{
+					}
 				}
+
+				answers.add(answer);
+			}
+		});
+	}
+
+	/**
+	 * Adds the nodes lying between us and the hash to the lookup candidates
+	 * @param candidates nodes preceding the hash
+	 * @param nodes nodes to add
+	 * @param hash hash value being looked up
+	 */
+	private void addCandidates(Set<ChordNode> candidates, Collection<ChordNode> nodes, ChordId hash)
+	{
+		for (ChordNode node : nodes)
+		{
+			if (node.getId().isInRange(key.getId(), false, hash, false))
+			{
+				candidates.add(node);
 			}
 		}
+	}
 
-		return key;
+	/**
+	 * Finds the distinct nodes in the fingertable preceding the hash value, closest first
+	 * @param hash hash value
+	 * @param count most nodes to return
+	 * @return closest nodes, empty if no node is closer to the hash than us
+	 */
+	private List<ChordNode> findClosestNodes(ChordId hash, int count)
+	{
+		return fingerTable.get().findClosestNodes(key.getId(), hash, count);
 	}
 
 	/**
@@ -647,8 +1037,7 @@ public class Chord
 		try
 		{
 			successor.connect();
-			successor.sendMessage(ChordNode.MessageType.SUCCESSOR_LIST, null);
-			response = successor.getResponse();
+			response = successor.sendRequest(ChordNode.MessageType.SUCCESSOR_LIST, null);
 			successor.close();
 		}
 		catch (Exception e)
@@ -703,6 +1092,14 @@ public class Chord
 	{
 		ByteBuffer response;
 
+		//Finishing handing our data to the successor if it did not all get there,
+		//unless another successor has taken over and been sent it since
+		ChordNode handoff = pendingHandoff;
+		if(handoff != null && (!handoff.equals(successor) || handOff(handoff, dataMap.values())))
+		{
+			pendingHandoff = null;
+		}
+
 		//Going through successors, and updating the successor list, until one responds
 		//to a predecessor message
 		while(true)
@@ -710,8 +1107,7 @@ public class Chord
 			try
 			{
 				successor.connect();
-				successor.sendMessage(ChordNode.MessageType.PREDECESSOR, null);
-				response = successor.getResponse();
+				response = successor.sendRequest(ChordNode.MessageType.PREDECESSOR, null);
 				successor.close();
 				break;
 			}
@@ -768,7 +1164,7 @@ public class Chord
 		ChordNode node = new ChordNode(InetAddress.getByAddress(IPAddress), port);
 
 		//Successor's predecessor should actually be our successor
-		if (ChordNode.isInRange(node.getHash(), key.getHash(), false, successor.getHash(), false))
+		if (node.getId().isInRange(key.getId(), false, successor.getId(), false))
 		{
 			setSuccessor(node);
 			stabilizeSuccessorList();
@@ -802,7 +1198,7 @@ public class Chord
 	 */
 	private void notify(ChordNode node) throws Exception
 	{
-		if ((predecessor == null) || ChordNode.isInRange(node.getHash(), predecessor.getHash(), false, key.getHash(), false))
+		if ((predecessor == null) || node.getId().isInRange(predecessor.getId(), false, key.getId(), false))
 		{
 			predecessor = node;
 
@@ -812,37 +1208,12 @@ public class Chord
 				return;
 			}
 
-			//Generating the list of data to send
-			LinkedList<ByteBuffer> sendList = new LinkedList<ByteBuffer>();
-			
-			synchronized(dataMap)
-			{
-				for(ChordData data : dataMap.values())
-				{
-					//Only sending data that our predecessor should be directly holding
-					if(ChordNode.isInRange(data.getHash(), key.getHash(), false, predecessor.getHash(), false))
-					{
-						ByteBuffer toSend = ByteBuffer.allocate(HASH_SIZE + data.getData().length);
-						toSend.put(data.getHash());
-						toSend.put(data.getData());
-						sendList.add(toSend);
-					}
-				}
-			}
-
-			//Sending the necessary data to our predecessor
-			try
+			//Only sending data that our predecessor should be directly holding.  If it
+			//does not all get there, forgetting the predecessor so its next notify
+			//sends it again
+			if(!handOff(node, dataMap.range(key.getId(), false, node.getId(), false)))
 			{
-				predecessor.connect();
-				for(ByteBuffer toSend : sendList)
-				{
-					predecessor.sendMessage(ChordNode.MessageType.PUT, toSend);
-				}
-				predecessor.close();
-			}
-			catch (Exception e)
-			{
-				predecessor.close();
+				predecessor = null;
 			}
 		}
 	}
@@ -853,31 +1224,14 @@ public class Chord
 	 */
 	private void fixFingers() throws Exception
 	{
-		BigInteger hashNumCeil = new BigInteger("2").pow(160);
-		BigInteger nextHashNum = new BigInteger("2").pow(nextFingerToFix).add(new BigInteger(key.getHash())).mod(hashNumCeil);
-		byte[] nextHashNumBytes = nextHashNum.toByteArray();
-		byte[] nextHash = new byte[HASH_SIZE];
-		
-		if(nextHashNumBytes.length <= HASH_SIZE)
-		{
-			System.arraycopy(nextHashNumBytes, 0, nextHash, HASH_SIZE - nextHashNumBytes.length, nextHashNumBytes.length);
-		}
-		else
-		{
-			System.arraycopy(nextHashNumBytes, nextHashNumBytes.length - HASH_SIZE, nextHash, 0, HASH_SIZE);
-		}
+		//Moving on first, so a finger whose successor cannot be found does not hold
+		//up the rest
+		int finger = nextFingerToFix;
+		nextFingerToFix = (nextFingerToFix + 1) % FINGER_TABLE_SIZE;
 
-		ChordNode node = findSuccessor(nextHash);
+		ChordNode node = findSuccessor(fingerStarts[finger]);
 
-		synchronized(fingerTable)
-		{
-			if(!node.equals(fingerTable.get(nextFingerToFix)))
-			{
-				fingerTable.set(nextFingerToFix, node);
-			}
-		}
-		
-		nextFingerToFix = (nextFingerToFix + 1) % FINGER_TABLE_SIZE;
+		setFinger(finger, node);
 	}
 
 	/**
@@ -900,8 +1254,7 @@ public class Chord
 		try
 		{
 			predecessor.connect();
-			predecessor.sendMessage(ChordNode.MessageType.PING, buffer);
-			predecessor.getResponse();
+			predecessor.sendRequest(ChordNode.MessageType.PING, buffer);
 			predecessor.close();
 		}
 		//Message was dropped, so our predecessor failed
@@ -909,24 +1262,6 @@ public class Chord
 		{
 			predecessor.close();
 
-			//Generating the list of data to send
-			LinkedList<ByteBuffer> sendList = new LinkedList<ByteBuffer>();
-			
-			synchronized(dataMap)
-			{
-				for(ChordData data : dataMap.values())
-				{
-					//Only sending data that our predecessor should be directly holding
-					if(ChordNode.isInRange(data.getHash(), key.getHash(), false, predecessor.getHash(), false))
-					{
-						ByteBuffer toSend = ByteBuffer.allocate(HASH_SIZE + data.getData().length);
-						toSend.put(data.getHash());
-						toSend.put(data.getData());
-						sendList.add(toSend);
-					}
-				}
-			}
-
 			//Finding the last successor in our list
 			ChordNode lastSuccessor;
 			synchronized(successorList)
@@ -941,23 +1276,14 @@ public class Chord
 				return;
 			}
 
-			//Sending the data to the last successor in order to keep up the resiliency
-			//of data in the ring
-			try
+			//Sending the data our predecessor should have been holding to the last
+			//successor in order to keep up the resiliency of data in the ring.  If it
+			//does not all get there, keeping the predecessor so the next check tries
+			//again
+			if(handOff(lastSuccessor, dataMap.range(key.getId(), false, predecessor.getId(), false)))
 			{
-				lastSuccessor.connect();
-				for(ByteBuffer toSend : sendList)
-				{
-					lastSuccessor.sendMessage(ChordNode.MessageType.PUT, toSend);
-				}
-				lastSuccessor.close();
-			}
-			catch (Exception ex)
-			{
-				lastSuccessor.close();
+				predecessor = null;
 			}
-		
-			predecessor = null;
 		}
 	}
 
@@ -1027,9 +1353,7 @@ public class Chord
 			//Successor -> Looking up the successor information for the given hash
 			case SUCCESSOR:
 			{
-				byte[] hash = new byte[HASH_SIZE];
-				buffer.get(hash);
-				ChordNode successor = findSuccessor(hash);
+				ChordNode successor = findSuccessor(new ChordId(buffer));
 
 				ByteBuffer response = ByteBuffer.allocate(6);
 				response.order(ByteOrder.BIG_ENDIAN);
@@ -1100,15 +1424,9 @@ public class Chord
 			//Get -> Node wants the data corresponding to a key held by us
 			case GET:
 			{
-				byte[] hash = new byte[HASH_SIZE];
-				buffer.get(hash);
 				ByteBuffer response = null;
 				
-				ChordData data;
-				synchronized(dataMap)
-				{
-					data = dataMap.get(new String(hash));
-				}
+				ChordData data = dataMap.get(new ChordId(buffer));
 
 				//Invalid get request, so letting the node know
 				if (data == null)
@@ -1153,22 +1471,15 @@ public class Chord
 				buffer.get(data);
 
 				//Updating the data in our list
-				synchronized(dataMap)
-				{
-					ChordData existingData = dataMap.get(new String(hash));
+				ChordData existingData = dataMap.putIfAbsent(new ChordData(hash, data));
 
-					if(existingData == null)
-					{
-						dataMap.put(new String(hash), new ChordData(hash, data));
-					}
-					else
-					{
-						existingData.setData(data);
-					}
+				if(existingData != null)
+				{
+					existingData.setData(data);
 				}
 
 				//Forwarding this data onto our successors if we are the direct holder
-				if(predecessor == null || ChordNode.isInRange(hash, predecessor.getHash(), false, key.getHash(), false))
+				if(predecessor == null || new ChordId(hash).isInRange(predecessor.getId(), false, key.getId(), false))
 				{
 					ByteBuffer toSend = ByteBuffer.allocate(HASH_SIZE + data.length);
 					toSend.put(hash);
@@ -1191,34 +1502,34 @@ public class Chord
 				ByteBuffer toSend;
 
 				//Updating the data in our list
-				synchronized(dataMap)
+				ChordData existingData = dataMap.putIfAbsent(new ChordData(hash, data));
+
+				//Created new data
+				if(existingData == null)
 				{
-					ChordData existingData = dataMap.get(new String(hash));
+					toSend = ByteBuffer.allocate(HASH_SIZE + data.length);
+					toSend.put(hash);
+					toSend.put(data);
+				}
+				//Appending to existing data, forwarding the result of this append
+				//rather than that of a concurrent one
+				else
+				{
+					byte[] updatedData;
 
-					//Creating new data
-					if(existingData == null)
-					{
-						dataMap.put(new String(hash), new ChordData(hash, data));
-				
-						toSend = ByteBuffer.allocate(HASH_SIZE + data.length);
-						toSend.put(hash);
-						toSend.put(data);
-					}
-					//Appending to existing data
-					else
+					synchronized(existingData)
 					{
 						existingData.appendData(data);
-						
-						byte[] updatedData = existingData.getData();
-				
-						toSend = ByteBuffer.allocate(HASH_SIZE + updatedData.length);
-						toSend.put(hash);
-						toSend.put(updatedData);
+						updatedData = existingData.getData();
 					}
+			
+					toSend = ByteBuffer.allocate(HASH_SIZE + updatedData.length);
+					toSend.put(hash);
+					toSend.put(updatedData);
 				}
 
 				//Forwarding this data onto our successors if we are the direct holder
-				if(predecessor == null || ChordNode.isInRange(hash, predecessor.getHash(), false, key.getHash(), false))
+				if(predecessor == null || new ChordId(hash).isInRange(predecessor.getId(), false, key.getId(), false))
 				{
 					sendToSuccessors(toSend);
 				}
@@ -1256,13 +1567,47 @@ public class Chord
 
 				break;
 			}
+			//Closest Nodes -> Node looking up a hash wants our successor if it holds the
+			//hash, or else the nodes we know of that are closer to the hash than us
+			case CLOSEST_NODES:
+			{
+				ChordId hash = new ChordId(buffer);
+
+				//Only claiming the hash when it lies between us and our successor, since
+				//otherwise our successor would be wrongly named its owner
+				ChordNode next = successor;
+				boolean found = hash.isInRange(key.getId(), false, next.getId(), true);
+
+				List<ChordNode> nodes = found ? Collections.singletonList(next) :
+					findClosestLiveNodes(hash, LOOKUP_CONCURRENCY);
+
+				ByteBuffer response = ByteBuffer.allocate(1 + 6 * nodes.size());
+				response.order(ByteOrder.BIG_ENDIAN);
+				response.put((byte)(found ? 1 : 0));
+
+				for (ChordNode c : nodes)
+				{
+					response.put(c.getIPAddress().getAddress());
+					response.putShort(c.getPort());
+				}
+
+				try
+				{
+					node.connect();
+					node.sendMessage(ChordNode.MessageType.CLOSEST_NODES_REPLY, response);
+					node.close();
+				}
+				catch (Exception e)
+				{
+					node.close();
+				}
+
+				break;
+			}
 			//Removing a given key,value data pair from our data list
 			case REMOVE:
 			{
-				byte[] hash = new byte[HASH_SIZE];
-				buffer.get(hash);
-				
-				dataMap.remove(new String(hash));
+				dataMap.remove(new ChordId(buffer));
 				
 				break;
 			}
@@ -5,6 +5,7 @@ import java.util.*;
 public class ChordData
 {
 	private byte[] hash;
+	private ChordId id;
 	private byte[] data;
 
 	/**
@@ -13,6 +14,7 @@ public class ChordData
 	public ChordData()
 	{
 		hash = null;
+		id = null;
 		data = null;
 	}
 
@@ -25,6 +27,7 @@ public class ChordData
 	public ChordData(byte[] hash, byte[] data)
 	{
 		this.hash = hash;
+		this.id = new ChordId(hash);
 		this.data = data;
 	}
 
@@ -37,6 +40,15 @@ public class ChordData
 		return hash;
 	}
 
+	/**
+	 * Position of the key on the ring, the same value as getHash()
+	 * @return identifier or null if not specified
+	 */
+	public ChordId getId()
+	{
+		return id;
+	}
+
 	/**
 	 * Data stored by this object
 	 * @return data
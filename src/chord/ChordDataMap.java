@@ -0,0 +1,314 @@
+package chord;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Data held by a node, keyed by the position of each key on the ring.
+ *
+ * The map is split into stripes picked by the top bits of the key, each guarded
+ * by its own lock so handlers working on different keys rarely wait on each
+ * other.  A stripe is an open addressing table with linear probing that holds
+ * the ChordData alone, since each one carries its own ChordId; removal shifts
+ * later entries back rather than leaving tombstones.  Keys are SHA-1 hashes and
+ * already uniform, so no further mixing is done.
+ *
+ * Alongside the stripes a skip list keeps the keys alone in ring order, so
+ * handing a range of keys to another node costs O(log n + k) in the k keys that
+ * move rather than a pass over everything held.  The index is updated under the
+ * same stripe lock as the table, so the two always agree on any one key.
+ */
+public class ChordDataMap
+{
+	private final int STRIPES = 16;					//must be a power of 2
+	private final int INITIAL_STRIPE_CAPACITY = 16;	//must be a power of 2
+
+	private Stripe[] stripes;
+	private ConcurrentSkipListSet<ChordId> ordered;
+
+	/**
+	 * One lock's worth of the map
+	 */
+	private class Stripe
+	{
+		ChordData[] slots = new ChordData[INITIAL_STRIPE_CAPACITY];
+		int size = 0;
+
+		/**
+		 * Finds where a key is, or the empty slot where it would go
+		 * @param id key to find
+		 * @return slot index
+		 */
+		int find(ChordId id)
+		{
+			int mask = slots.length - 1;
+			int slot = id.hashCode() & mask;
+
+			while(slots[slot] != null && !slots[slot].getId().equals(id))
+			{
+				slot = (slot + 1) & mask;
+			}
+
+			return slot;
+		}
+
+		void insert(int slot, ChordData data)
+		{
+			slots[slot] = data;
+			size++;
+
+			//Keeping probe sequences short with the table at most three quarters full
+			if(size * 4 > slots.length * 3)
+			{
+				ChordData[] old = slots;
+				slots = new ChordData[old.length * 2];
+
+				for(ChordData moved : old)
+				{
+					if(moved != null)
+					{
+						slots[find(moved.getId())] = moved;
+					}
+				}
+			}
+		}
+
+		ChordData delete(int slot)
+		{
+			ChordData removed = slots[slot];
+			int mask = slots.length - 1;
+
+			//Shifting back entries that probed past the freed slot
+			int gap = slot;
+			int next = (slot + 1) & mask;
+			while(slots[next] != null)
+			{
+				int home = slots[next].getId().hashCode() & mask;
+
+				//Moving the entry unless its home lies between the gap and where it is
+				if(((next - home) & mask) >= ((next - gap) & mask))
+				{
+					slots[gap] = slots[next];
+					gap = next;
+				}
+
+				next = (next + 1) & mask;
+			}
+
+			slots[gap] = null;
+			size--;
+			return removed;
+		}
+	}
+
+	/**
+	 * Creates an empty map
+	 */
+	public ChordDataMap()
+	{
+		stripes = new Stripe[STRIPES];
+		for(int s = 0; s < STRIPES; s++)
+		{
+			stripes[s] = new Stripe();
+		}
+
+		ordered = new ConcurrentSkipListSet<ChordId>();
+	}
+
+	private Stripe stripeFor(ChordId id)
+	{
+		//Top bits pick the stripe, leaving the low bits to pick the slot within it
+		return stripes[(id.hashCode() >>> 28) & (STRIPES - 1)];
+	}
+
+	/**
+	 * Returns the data held for a key
+	 * @param id key
+	 * @return data, or null if none is held
+	 */
+	public ChordData get(ChordId id)
+	{
+		Stripe stripe = stripeFor(id);
+
+		synchronized(stripe)
+		{
+			return stripe.slots[stripe.find(id)];
+		}
+	}
+
+	/**
+	 * Holds data under its key, replacing any data held for it
+	 * @param data data to hold
+	 * @return data replaced, or null if there was none
+	 */
+	public ChordData put(ChordData data)
+	{
+		Stripe stripe = stripeFor(data.getId());
+
+		synchronized(stripe)
+		{
+			int slot = stripe.find(data.getId());
+			ChordData existing = stripe.slots[slot];
+
+			if(existing == null)
+			{
+				stripe.insert(slot, data);
+				ordered.add(data.getId());
+			}
+			else
+			{
+				stripe.slots[slot] = data;
+			}
+
+			return existing;
+		}
+	}
+
+	/**
+	 * Holds data under its key unless data is already held for it
+	 * @param data data to hold
+	 * @return data already held, in which case nothing changes, or null if data
+	 * was added
+	 */
+	public ChordData putIfAbsent(ChordData data)
+	{
+		Stripe stripe = stripeFor(data.getId());
+
+		synchronized(stripe)
+		{
+			int slot = stripe.find(data.getId());
+			ChordData existing = stripe.slots[slot];
+
+			if(existing == null)
+			{
+				stripe.insert(slot, data);
+				ordered.add(data.getId());
+			}
+
+			return existing;
+		}
+	}
+
+	/**
+	 * Stops holding the data for a key
+	 * @param id key
+	 * @return data removed, or null if none was held
+	 */
+	public ChordData remove(ChordId id)
+	{
+		Stripe stripe = stripeFor(id);
+
+		synchronized(stripe)
+		{
+			int slot = stripe.find(id);
+
+			if(stripe.slots[slot] == null)
+			{
+				return null;
+			}
+
+			ordered.remove(id);
+			return stripe.delete(slot);
+		}
+	}
+
+	/**
+	 * Number of keys data is held for
+	 * @return key count
+	 */
+	public int size()
+	{
+		int size = 0;
+
+		for(Stripe stripe : stripes)
+		{
+			synchronized(stripe)
+			{
+				size += stripe.size;
+			}
+		}
+
+		return size;
+	}
+
+	/**
+	 * Copies out all the data held.  Each stripe is copied under its lock, so the
+	 * copy may mix data from before and after changes made while it is taken.
+	 * @return data held, in no particular order
+	 */
+	public List<ChordData> values()
+	{
+		List<ChordData> values = new ArrayList<ChordData>();
+
+		for(Stripe stripe : stripes)
+		{
+			synchronized(stripe)
+			{
+				for(ChordData data : stripe.slots)
+				{
+					if(data != null)
+					{
+						values.add(data);
+					}
+				}
+			}
+		}
+
+		return values;
+	}
+
+	/**
+	 * Copies out the data whose keys lie between two points going clockwise round
+	 * the ring, with the same bounds as ChordId.isInRange().  The copy may mix data
+	 * from before and after changes made while it is taken.
+	 * @param lowerBound lower bound
+	 * @param lowerBoundInclusive if lower bound is inclusive
+	 * @param upperBound upper bound
+	 * @param upperBoundInclusive if upper bound is inclusive
+	 * @return data in range, in ring order from the lower bound
+	 */
+	public List<ChordData> range(ChordId lowerBound, boolean lowerBoundInclusive,
+		ChordId upperBound, boolean upperBoundInclusive)
+	{
+		List<ChordData> range = new ArrayList<ChordData>();
+		int order = lowerBound.compareTo(upperBound);
+
+		if(order < 0)
+		{
+			addAll(range, ordered.subSet(lowerBound, lowerBoundInclusive, upperBound, upperBoundInclusive));
+		}
+		//Equal bounds take in the whole ring, less the bound unless both ends are inclusive
+		else if(order == 0 && lowerBoundInclusive && upperBoundInclusive)
+		{
+			addAll(range, ordered.tailSet(lowerBound, true));
+			addAll(range, ordered.headSet(upperBound, false));
+		}
+		//Range wraps past zero
+		else
+		{
+			addAll(range, ordered.tailSet(lowerBound, lowerBoundInclusive && order != 0));
+			addAll(range, ordered.headSet(upperBound, upperBoundInclusive && order != 0));
+		}
+
+		return range;
+	}
+
+	/**
+	 * Adds the data held for each of a run of keys, skipping any removed since the
+	 * index was read
+	 * @param range list to add to
+	 * @param ids keys in ring order
+	 */
+	private void addAll(List<ChordData> range, Set<ChordId> ids)
+	{
+		for(ChordId id : ids)
+		{
+			ChordData data = get(id);
+
+			if(data != null)
+			{
+				range.add(data);
+			}
+		}
+	}
+}
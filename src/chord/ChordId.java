@@ -0,0 +1,195 @@
+package chord;
+
+import java.nio.*;
+
+/**
+ * 160-bit identifier of a point on the ring, such as a SHA-1 node or key hash,
+ * held as three unsigned words so comparisons and interval tests are a few long
+ * comparisons and never allocate.  Identifiers are immutable.
+ */
+public final class ChordId implements Comparable<ChordId>
+{
+	//Size of an identifier in bytes
+	public static final int SIZE = 20;
+
+	//Size of an identifier in bits, the number of powers of two it can be added
+	public static final int BITS = SIZE * 8;
+
+	//Most significant 64 bits, next 64 bits, and least significant 32 bits
+	private final long high;
+	private final long middle;
+	private final int low;
+
+	/**
+	 * Reads an identifier from a big endian hash
+	 * @param hash SIZE byte hash
+	 */
+	public ChordId(byte[] hash)
+	{
+		this(ByteBuffer.wrap(hash));
+	}
+
+	/**
+	 * Reads an identifier from a buffer, advancing it by SIZE bytes
+	 * @param buffer buffer holding the big endian hash
+	 */
+	public ChordId(ByteBuffer buffer)
+	{
+		ByteOrder order = buffer.order();
+		buffer.order(ByteOrder.BIG_ENDIAN);
+
+		high = buffer.getLong();
+		middle = buffer.getLong();
+		low = buffer.getInt();
+
+		buffer.order(order);
+	}
+
+	private ChordId(long high, long middle, int low)
+	{
+		this.high = high;
+		this.middle = middle;
+		this.low = low;
+	}
+
+	/**
+	 * Adds 2^exponent to the identifier, wrapping around the ring
+	 * @param exponent power of two to add, from 0 to BITS - 1
+	 * @return identifier exponent places further around the finger table
+	 */
+	public ChordId addPowerOfTwo(int exponent)
+	{
+		long h = high;
+		long m = middle;
+		long l = (long)low & 0xFFFFFFFFL;
+
+		if (exponent < 32)
+		{
+			l += 1L << exponent;
+			if (l >>> 32 != 0)
+			{
+				m++;
+				if (m == 0)
+				{
+					h++;
+				}
+			}
+		}
+		else if (exponent < 96)
+		{
+			long before = m;
+			m += 1L << (exponent - 32);
+			if (Long.compareUnsigned(m, before) < 0)
+			{
+				h++;
+			}
+		}
+		else
+		{
+			h += 1L << (exponent - 96);
+		}
+
+		return new ChordId(h, m, (int)l);
+	}
+
+	/**
+	 * Writes the identifier as a big endian hash
+	 * @param buffer buffer to write SIZE bytes to
+	 */
+	public void put(ByteBuffer buffer)
+	{
+		ByteOrder order = buffer.order();
+		buffer.order(ByteOrder.BIG_ENDIAN);
+
+		buffer.putLong(high);
+		buffer.putLong(middle);
+		buffer.putInt(low);
+
+		buffer.order(order);
+	}
+
+	/**
+	 * Returns the identifier as a big endian hash
+	 * @return SIZE byte hash
+	 */
+	public byte[] toBytes()
+	{
+		byte[] hash = new byte[SIZE];
+		put(ByteBuffer.wrap(hash));
+		return hash;
+	}
+
+	/**
+	 * Compares identifiers as unsigned numbers, not along the ring
+	 * @param other identifier to compare with
+	 * @return positive number if this &gt; other, zero if equal, negative otherwise
+	 */
+	public int compareTo(ChordId other)
+	{
+		if (high != other.high)
+		{
+			return Long.compareUnsigned(high, other.high);
+		}
+
+		if (middle != other.middle)
+		{
+			return Long.compareUnsigned(middle, other.middle);
+		}
+
+		return Integer.compareUnsigned(low, other.low);
+	}
+
+	/**
+	 * Determines if the identifier lies between two others going clockwise round
+	 * the ring from lowerBound to upperBound.  When the bounds are equal the range
+	 * is the whole ring, less the bound itself unless both ends are inclusive.
+	 * @param lowerBound lower bound
+	 * @param lowerBoundInclusive if lower bound is inclusive
+	 * @param upperBound upper bound
+	 * @param upperBoundInclusive if upper bound is inclusive
+	 * @return true if the identifier is in range, false otherwise
+	 */
+	public boolean isInRange(ChordId lowerBound, boolean lowerBoundInclusive,
+		ChordId upperBound, boolean upperBoundInclusive)
+	{
+		int UL = upperBound.compareTo(lowerBound);
+		int UV = upperBound.compareTo(this);
+		int LV = lowerBound.compareTo(this);
+
+		if (UL == 0)
+		{
+			return (upperBoundInclusive && lowerBoundInclusive) || (UV != 0);
+		}
+
+		boolean belowUpper = upperBoundInclusive ? UV >= 0 : UV > 0;
+		boolean aboveLower = lowerBoundInclusive ? LV <= 0 : LV < 0;
+
+		//Range not wrapping past zero holds what is above the lower bound and below
+		//the upper one; a wrapping range holds what is either
+		return (UL > 0) ? (belowUpper && aboveLower) : (belowUpper || aboveLower);
+	}
+
+	@Override
+	public boolean equals(Object obj)
+	{
+		if (!(obj instanceof ChordId))
+		{
+			return false;
+		}
+
+		ChordId other = (ChordId)obj;
+		return high == other.high && middle == other.middle && low == other.low;
+	}
+
+	@Override
+	public int hashCode()
+	{
+		//Hashes are uniform already, so any of the bits will do
+		return (int)(high ^ (high >>> 32)) ^ (int)middle ^ low;
+	}
+
+	public String toString()
+	{
+		return String.format("%016X%016X%08X", high, middle, low);
+	}
+}
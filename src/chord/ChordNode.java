@@ -5,15 +5,19 @@ import java.net.*;
 import java.nio.*;
 import java.security.*;
 import java.util.*;
-import java.util.concurrent.locks.*;
+import java.util.concurrent.*;
+import java.util.function.*;
 
 public class ChordNode
 {
 	private byte[] hash;
-	private RUDPSocket sock;
+	private ChordId id;
+	private RUDPSession session;
 	private InetAddress IPAddr;
 	private short port;
-	private Lock socketLock;
+	private int connections;
+	private boolean replyExpected;
+	private int requestId;
 
 	/**
 	 * Instantiates a new ChordNode based on the ip address and the port.
@@ -23,7 +27,7 @@ public class ChordNode
 	 */
 	public ChordNode(InetAddress IPAddr, short port) throws Exception
 	{
-		sock = null;
+		session = null;
 		this.IPAddr = IPAddr;
 		this.port = port;
 
@@ -31,18 +35,21 @@ public class ChordNode
 		identifier[4] = (byte)((port >> 8) & 0xFF);
 		identifier[5] = (byte)(port & 0xFF);
 		hash = MessageDigest.getInstance("SHA-1").digest(identifier);
+		id = new ChordId(hash);
 
-		socketLock = new ReentrantLock();
+		connections = 0;
+		replyExpected = false;
 	}
 
 	/**
-	 * Associates this code with the socket
+	 * Instantiates a new ChordNode for the other end of the socket.  If the socket
+	 * was handed out for a request, the next sendMessage() answers that request.
 	 * @param sock socket used for talking with other Chords
 	 * @throws Exception if sock is invalid in anyway or contains an invalid address/port
 	 */
 	public ChordNode(RUDPSocket sock) throws Exception
 	{
-		this.sock = sock;
+		session = null;
 		this.IPAddr = sock.getSockAddr().getAddress();
 		this.port = (short)sock.getSockAddr().getPort();
 
@@ -50,17 +57,20 @@ public class ChordNode
 		identifier[4] = (byte)((sock.getSockAddr().getPort() >> 8) & 0xFF);
 		identifier[5] = (byte)(sock.getSockAddr().getPort() & 0xFF);
 		hash = MessageDigest.getInstance("SHA-1").digest(identifier);
+		id = new ChordId(hash);
 
-		socketLock = new ReentrantLock();
+		connections = 0;
+		replyExpected = sock.isRequest();
+		requestId = sock.getRequestId();
 	}
 
 	/**
 	 * Returns the socket used in talking to the node
-	 * @return socket used or null, if none used
+	 * @return socket used or null, if not connected
 	 */
-	public RUDPSocket getSock()
+	public synchronized RUDPSocket getSock()
 	{
-		return sock;
+		return (session == null) ? null : session.getSocket();
 	}
 
 	/**
@@ -90,6 +100,15 @@ public class ChordNode
 		return hash;
 	}
 
+	/**
+	 * Position of the node on the ring, the same value as getHash()
+	 * @return identifier--never null
+	 */
+	public ChordId getId()
+	{
+		return id;
+	}
+
 	/**
 	 * A human readable string of getHash()
 	 * @return string of getHash()
@@ -114,54 +133,164 @@ public class ChordNode
 	}
 
 	/**
-	 * Connects to other node
+	 * Connects to other node by taking the session to it from the shared
+	 * RUDPSessionManager.  Several threads may be connected through the same
+	 * ChordNode at once; each connect() must be paired with a close().  Sending
+	 * connects on its own as needed, so this only keeps the session held across
+	 * several messages.
 	 * @throws Exception on network I/O error
 	 */
-	public void connect() throws Exception
+	public synchronized void connect() throws Exception
+	{
+		if(connections == 0)
+		{
+			session = RUDPSessionManager.getDefault().acquire(new InetSocketAddress(IPAddr, (int)port & 0xFFFF));
+		}
+
+		connections++;
+	}
+
+	/**
+	 * Hands the session used to talk with other node back to the
+	 * RUDPSessionManager once every thread connected through this ChordNode is
+	 * done with it.  The session itself stays open for the next connect().
+	 */
+	public synchronized void close()
+	{
+		if(connections == 0)
+		{
+			return;
+		}
+
+		connections--;
+
+		if(connections == 0)
+		{
+			RUDPSessionManager.getDefault().release(session);
+			session = null;
+		}
+	}
+
+	/**
+	 * Sends message to other node.  If this node sent us a request, the message
+	 * is sent as the reply to it.
+	 * @param type type of message
+	 * @param payload message contents
+	 * @throws Exception thrown on Network I/O errors
+	 */
+	public void sendMessage(MessageType type, ByteBuffer payload) throws Exception
 	{
+		connect();
+
 		try
 		{
-			socketLock.lock();
-			if(sock == null)
+			if(replyExpected)
+			{
+				session.reply(requestId, toMessage(type, payload));
+			}
+			else
 			{
-				sock = new RUDPSocket(IPAddr, (int)port & 0xFFFF);
+				session.write(toMessage(type, payload));
 			}
 		}
-		catch (Exception e)
+		finally
 		{
-			socketLock.unlock();
-			throw e;
+			close();
 		}
 	}
 
 	/**
-	 * Closes the socket used to talk with other node
+	 * Sends a request to other node and waits for its reply.  Any number of
+	 * requests may be outstanding to the same node at once.
+	 * @param type type of message
+	 * @param payload message contents
+	 * @return reply from other node
+	 * @throws Exception thrown on Network I/O errors or if other node did not reply
 	 */
-	public void close()
+	public ByteBuffer sendRequest(MessageType type, ByteBuffer payload) throws Exception
 	{
+		connect();
+
 		try
 		{
-			if(sock != null)
-			{
-				sock.close();
-				sock = null;
-				socketLock.unlock();
-			}
+			return session.call(toMessage(type, payload));
 		}
-		catch (Exception e)
+		finally
 		{
-			sock = null;
-			socketLock.unlock();
+			close();
 		}
 	}
 
 	/**
-	 * Sends message to other node
+	 * Sends a request to other node without waiting for its reply, so lookups can
+	 * be chained without holding a thread per hop.  The node stays connected until
+	 * the reply arrives or the request fails.
 	 * @param type type of message
 	 * @param payload message contents
+	 * @return future completed with the reply from other node, or failed on Network
+	 * I/O errors or if other node did not reply
+	 */
+	public CompletableFuture<ByteBuffer> sendRequestAsync(MessageType type, ByteBuffer payload)
+	{
+		CompletableFuture<ByteBuffer> reply;
+
+		try
+		{
+			connect();
+		}
+		catch (Exception e)
+		{
+			reply = new CompletableFuture<ByteBuffer>();
+			reply.completeExceptionally(e);
+			return reply;
+		}
+
+		reply = getSock().callAsync(toMessage(type, payload));
+
+		return reply.whenComplete(new BiConsumer<ByteBuffer, Throwable>()
+		{
+			public void accept(ByteBuffer result, Throwable error)
+			{
+				close();
+			}
+		});
+	}
+
+	/**
+	 * Sends a batch of messages of the same type to other node.  The messages
+	 * are pipelined rather than waiting on each one in turn, and arrive in order.
+	 * @param type type of every message
+	 * @param payloads contents of each message
 	 * @throws Exception thrown on Network I/O errors
 	 */
-	public void sendMessage(MessageType type, ByteBuffer payload) throws Exception
+	public void sendMessages(MessageType type, List<ByteBuffer> payloads) throws Exception
+	{
+		List<byte[]> messages = new ArrayList<byte[]>(payloads.size());
+
+		for(ByteBuffer payload : payloads)
+		{
+			messages.add(toMessage(type, payload));
+		}
+
+		connect();
+
+		try
+		{
+			session.write(messages);
+		}
+		finally
+		{
+			close();
+		}
+	}
+
+	/**
+	 * Builds the on the wire form of a message
+	 * @param type type of message
+	 * @param payload message contents, or null if there are none
+	 * @return message type followed by the contents
+	 */
+	private byte[] toMessage(MessageType type, ByteBuffer payload)
 	{
 		byte[] message;
 
@@ -184,20 +313,7 @@ public class ChordNode
 			payload.compact();
 		}
 
-		sock.write(message);
-	}
-
-	/**
-	 * Returns the response from other node.  Only usable after calling
-	 * sendMessage().  Some MessageTypes don't require a response. Using this
-	 * after those kinds of sendMessage() will result in an exception.
-	 * @return reponse by other other
-	 * @throws Exception in Network I/O error or if other node isn't interested
-	 * in responding
-	 */
-	public ByteBuffer getResponse() throws Exception
-	{
-		return sock.read();
+		return message;
 	}
 
 	@Override
@@ -212,81 +328,12 @@ public class ChordNode
 			return false;
 		}
 		final ChordNode other = (ChordNode) obj;
-		if (!Arrays.equals(other.getHash(), hash))
-		{
-			return false;
-		}
-		return true;
+		return id.equals(other.id);
 	}
 
 	@Override
 	public int hashCode() {
-		int hash = 5;
-		hash = 31 * hash + Arrays.hashCode(this.hash);
-		return hash;
-	}
-
-	/**
-	 * Compares two hashes.  Same specs as Comparator.compare()
-	 * @param hash1 first hash to compare
-	 * @param hash2 second hash to compare
-	 * @return positive number of hash1 > hash2, zero if hash1 == hash2, negative
-	 * otherwise
-	 */
-	public static int compare(byte[] hash1, byte[] hash2)
-	{
-		for (int c = 0; c < hash1.length; c++)
-		{
-			int a = ((int)hash1[c]) & 0xff;
-			int b = ((int)hash2[c]) & 0xff;
-
-			if (a > b)
-			{
-				return 1;
-			}
-			else if (a < b)
-			{
-				return -1;
-			}
-		}
-
-		return 0;
-	}
-
-	/**
-	 * Determines if this condition holds: lowerBound &lt; variant &gt; upperBound.
-	 * @param variant point to compare with upper and lower bounds
-	 * @param lowerBound lower bound
-	 * @param lowerBoundInclusive if lower bound is inclusive
-	 * @param upperBound upper bound
-	 * @param upperBoundInclusive if upperbound is inclusive
-	 * @return true if variant is in range, false otherwise
-	 */
-	public static boolean isInRange(byte[] variant,
-		byte[] lowerBound, boolean lowerBoundInclusive,
-		byte[] upperBound, boolean upperBoundInclusive)
-	{
-		int UL = ChordNode.compare(upperBound, lowerBound);
-		int UV = ChordNode.compare(upperBound, variant);
-		int LV = ChordNode.compare(lowerBound, variant);
-
-		boolean UgV = upperBoundInclusive ? UV >= 0 : UV > 0;
-		boolean UlV = upperBoundInclusive ? UV <= 0 : UV < 0;
-		boolean LgV = lowerBoundInclusive ? LV >= 0 : LV > 0;
-		boolean LlV = lowerBoundInclusive ? LV <= 0 : LV < 0;
-
-		if(UL < 0)
-		{
-			return (UgV && LgV) || (UlV && LlV);
-		}
-		else if(UL == 0)
-		{
-			return (upperBoundInclusive && lowerBoundInclusive) ? true : (UV != 0);
-		}
-		else
-		{
-			return UgV && LlV;
-		}
+		return id.hashCode();
 	}
 
 	public String toString()
@@ -295,8 +342,7 @@ public class ChordNode
 	}
 
 	/**
-	 * Specifies the types of messages sendMessage() can send and getResponse()
-	 * will return
+	 * Specifies the types of messages sendMessage() and sendRequest() can send
 	 */
 	public enum MessageType {
 		PING(0),
@@ -313,7 +359,9 @@ public class ChordNode
 		GET_REPLY_INVALID(11),
 		SUCCESSOR_LIST(12),
 		SUCCESSOR_LIST_REPLY(13),
-		REMOVE(14);
+		REMOVE(14),
+		CLOSEST_NODES(15),
+		CLOSEST_NODES_REPLY(16);
 
 		private int value;
 		private MessageType(int value)
@@ -0,0 +1,120 @@
+package chord;
+
+import java.util.*;
+
+/**
+ * Immutable snapshot of a node's finger table.  Changing a finger makes a new
+ * snapshot, so lookups read whichever one is current without taking a lock and
+ * never see a table half way through an update.
+ *
+ * Most of the fingers of a node in a ring of N nodes point at the same few
+ * nodes, so the snapshot also keeps the O(log N) distinct ones that lookups
+ * actually need to scan.
+ */
+public class FingerTable
+{
+	private ChordNode[] fingers;
+
+	//Distinct fingers, furthest along the ring first
+	private ChordNode[] distinct;
+
+	/**
+	 * Creates a table with every finger pointing at the same node
+	 * @param node node every finger points at, usually the owner of the table
+	 * @param size number of fingers
+	 */
+	public FingerTable(ChordNode node, int size)
+	{
+		fingers = new ChordNode[size];
+		Arrays.fill(fingers, node);
+		distinct = new ChordNode[] {node};
+	}
+
+	private FingerTable(ChordNode[] fingers)
+	{
+		this.fingers = fingers;
+
+		List<ChordNode> seen = new ArrayList<ChordNode>();
+		for (int i = fingers.length - 1; i >= 0; i--)
+		{
+			if (!seen.contains(fingers[i]))
+			{
+				seen.add(fingers[i]);
+			}
+		}
+
+		distinct = seen.toArray(new ChordNode[seen.size()]);
+	}
+
+	/**
+	 * Makes a table with one finger changed
+	 * @param index finger to change
+	 * @param node node the finger should point at
+	 * @return new table, or this one if the finger already points at node
+	 */
+	public FingerTable with(int index, ChordNode node)
+	{
+		if (fingers[index].equals(node))
+		{
+			return this;
+		}
+
+		ChordNode[] changed = fingers.clone();
+		changed[index] = node;
+		return new FingerTable(changed);
+	}
+
+	/**
+	 * Returns a finger
+	 * @param index finger to return
+	 * @return node the finger points at
+	 */
+	public ChordNode get(int index)
+	{
+		return fingers[index];
+	}
+
+	/**
+	 * Returns the number of fingers
+	 * @return finger count
+	 */
+	public int size()
+	{
+		return fingers.length;
+	}
+
+	/**
+	 * Finds the distinct fingers lying strictly between a node and a hash value,
+	 * closest to the hash first
+	 * @param owner position of the node owning the table
+	 * @param hash hash value
+	 * @param count most nodes to return
+	 * @return closest nodes, empty if no finger is closer to the hash than the owner
+	 */
+	public List<ChordNode> findClosestNodes(ChordId owner, ChordId hash, int count)
+	{
+		List<ChordNode> closest = new ArrayList<ChordNode>(Math.min(count, distinct.length));
+
+		for (int d = 0; d < distinct.length && closest.size() < count; d++)
+		{
+			if (distinct[d].getId().isInRange(owner, false, hash, false))
+			{
+				closest.add(distinct[d]);
+			}
+		}
+
+		return closest;
+	}
+
+	public String toString()
+	{
+		StringBuilder str = new StringBuilder();
+
+		for (int i = 0; i < fingers.length; i++)
+		{
+			str.append("[").append(i).append("] ").append(fingers[i]).append("\n");
+		}
+
+		return str.toString();
+	}
+}
@@ -0,0 +1,181 @@
+package chord;
+
+import java.util.*;
+
+/**
+ * Remembers which node owns which ranges of the ring, so operations on a key
+ * looked up lately go straight to its owner instead of taking O(log N) hops.
+ *
+ * A lookup that ends at a node answering for (node, successor] tells us the
+ * successor owns that whole range, which is what is kept.  Ranges expire after a
+ * while, since nodes joining split them without telling us, and are dropped early
+ * when their owner stops answering or turns out not to hold a key it should.
+ * Newer ranges replace older ones they contradict.
+ */
+public class LookupCache
+{
+	private long ttl;
+	private int maxRanges;
+
+	//Ranges by the hash of their owner, which is their inclusive upper bound
+	private TreeMap<ChordId, Range> ranges;
+	private long hits;
+	private long misses;
+
+	/**
+	 * A range of the ring and the node holding it
+	 */
+	private static class Range
+	{
+		ChordId lowerBound;
+		ChordNode owner;
+		long expiresAt;
+
+		Range(ChordId lowerBound, ChordNode owner, long expiresAt)
+		{
+			this.lowerBound = lowerBound;
+			this.owner = owner;
+			this.expiresAt = expiresAt;
+		}
+
+		boolean contains(ChordId hash)
+		{
+			return hash.isInRange(lowerBound, false, owner.getId(), true);
+		}
+	}
+
+	/**
+	 * Creates an empty cache
+	 * @param ttl how long a range is trusted for in milliseconds
+	 * @param maxRanges most ranges kept, the ones expiring soonest giving way first
+	 */
+	public LookupCache(long ttl, int maxRanges)
+	{
+		this.ttl = ttl;
+		this.maxRanges = maxRanges;
+
+		ranges = new TreeMap<ChordId, Range>();
+		hits = 0;
+		misses = 0;
+	}
+
+	/**
+	 * Finds the owner of a hash
+	 * @param hash hash value
+	 * @return node that owned the hash when last looked up, or null if no range
+	 * known and still trusted holds it
+	 */
+	public synchronized ChordNode get(ChordId hash)
+	{
+		//The range holding the hash is the one with the next owner along the ring
+		Map.Entry<ChordId, Range> entry = ranges.ceilingEntry(hash);
+		if (entry == null)
+		{
+			entry = ranges.firstEntry();
+		}
+
+		if (entry != null && entry.getValue().contains(hash))
+		{
+			if (entry.getValue().expiresAt - System.currentTimeMillis() > 0)
+			{
+				hits++;
+				return entry.getValue().owner;
+			}
+
+			ranges.remove(entry.getKey());
+		}
+
+		misses++;
+		return null;
+	}
+
+	/**
+	 * Records that a node holds the range (lowerBound, owner]
+	 * @param lowerBound exclusive lower bound of the range, the hash of the node
+	 * preceding the owner
+	 * @param owner node holding the range
+	 */
+	public synchronized void put(ChordId lowerBound, ChordNode owner)
+	{
+		//A node lying inside the range no longer holds anything we knew of
+		Iterator<Range> existing = ranges.values().iterator();
+		while (existing.hasNext())
+		{
+			Range range = existing.next();
+
+			if (range.owner.getId().isInRange(lowerBound, false, owner.getId(), false))
+			{
+				existing.remove();
+			}
+		}
+
+		ranges.put(owner.getId(), new Range(lowerBound, owner, System.currentTimeMillis() + ttl));
+
+		while (ranges.size() > maxRanges)
+		{
+			ChordId soonest = null;
+			long soonestExpiry = 0;
+
+			for (Range range : ranges.values())
+			{
+				if (soonest == null || range.expiresAt - soonestExpiry < 0)
+				{
+					soonest = range.owner.getId();
+					soonestExpiry = range.expiresAt;
+				}
+			}
+
+			ranges.remove(soonest);
+		}
+	}
+
+	/**
+	 * Forgets every range held by a node, after it failed to answer or did not
+	 * hold a key it should have
+	 * @param owner node to forget
+	 */
+	public synchronized void invalidate(ChordNode owner)
+	{
+		ranges.remove(owner.getId());
+	}
+
+	/**
+	 * Forgets every range
+	 */
+	public synchronized void clear()
+	{
+		ranges.clear();
+	}
+
+	/**
+	 * Number of ranges kept, including expired ones not yet dropped
+	 * @return range count
+	 */
+	public synchronized int size()
+	{
+		return ranges.size();
+	}
+
+	/**
+	 * Number of lookups answered from the cache
+	 * @return lookup count
+	 */
+	public synchronized long getHits()
+	{
+		return hits;
+	}
+
+	/**
+	 * Number of lookups the cache could not answer
+	 * @return lookup count
+	 */
+	public synchronized long getMisses()
+	{
+		return misses;
+	}
+
+	public synchronized String toString()
+	{
+		return "ranges=" + ranges.size() + " hits=" + hits + " misses=" + misses;
+	}
+}
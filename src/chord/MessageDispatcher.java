@@ -0,0 +1,222 @@
+package chord;
+
+import java.lang.management.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import javax.management.*;
+
+/**
+ * Fixed pool of worker threads handling the messages a node receives. Messages
+ * wait in a bounded queue for a free worker; when the queue is full the
+ * receiving thread is held back for a moment, which in turn leaves datagrams to
+ * queue up in the socket and senders to slow down, and if there is still no
+ * room the message is shed. A shed request goes unanswered, and the sender
+ * times out and retries as it would for a lost one.
+ *
+ * The number of workers and the length of the queue both default to 64 unless
+ * the chord.workers and chord.backlog system properties name others. A long
+ * queue does not help: a message waiting behind many others is answered after
+ * its sender has given up on it, so it is better to push back on the socket
+ * early. Dispatchers are registered with the platform MBean server as
+ * chord:type=MessageDispatcher,port=N so the depth of the queue and the number
+ * of messages shed can be watched.
+ */
+public class MessageDispatcher implements MessageDispatcherMXBean
+{
+	static final int DEFAULT_WORKERS = fromProperty("chord.workers", 64);
+	static final int DEFAULT_BACKLOG = fromProperty("chord.backlog", 64);
+
+	//How long the receiving thread waits for room in a full queue before shedding
+	private final long BACKPRESSURE_WAIT = 100;	//milliseconds
+
+	private int workers;
+	private int backlog;
+	private ThreadPoolExecutor pool;
+	private AtomicInteger peakQueueDepth;
+	private AtomicLong rejected;
+	private ObjectName name;
+
+	/**
+	 * Creates a dispatcher for the node listening on port
+	 * @param port port of the node, naming its threads and MBean
+	 * @param workers most messages handled at once
+	 * @param backlog most messages waiting for a worker
+	 */
+	public MessageDispatcher(final int port, int workers, int backlog)
+	{
+		this.workers = workers;
+		this.backlog = backlog;
+
+		pool = new ThreadPoolExecutor(workers, workers, 10, TimeUnit.SECONDS,
+			new ArrayBlockingQueue<Runnable>(backlog), new ThreadFactory()
+			{
+				private AtomicInteger count = new AtomicInteger();
+
+				public Thread newThread(Runnable task)
+				{
+					Thread thread = new Thread(task, "Chord " + port + " worker " + count.getAndIncrement());
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+
+		//Idle nodes give their workers back
+		pool.allowCoreThreadTimeOut(true);
+
+		peakQueueDepth = new AtomicInteger();
+		rejected = new AtomicLong();
+
+		try
+		{
+			name = new ObjectName("chord:type=MessageDispatcher,port=" + port);
+			ManagementFactory.getPlatformMBeanServer().registerMBean(this, name);
+		}
+		catch (Exception e)
+		{
+			name = null;
+		}
+	}
+
+	/**
+	 * Queues a message to be handled by a worker
+	 * @param handler handles the message
+	 * @return false if the message was shed, in which case handler is never run
+	 */
+	public boolean dispatch(Runnable handler)
+	{
+		try
+		{
+			pool.execute(handler);
+			recordQueueDepth();
+			return true;
+		}
+		catch (RejectedExecutionException e)
+		{
+		}
+
+		//Every worker is busy and the queue is full, so holding back the receiving thread
+		try
+		{
+			if(!pool.isShutdown() && pool.getQueue().offer(handler, BACKPRESSURE_WAIT, TimeUnit.MILLISECONDS))
+			{
+				recordQueueDepth();
+				return true;
+			}
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+		}
+
+		rejected.incrementAndGet();
+		return false;
+	}
+
+	/**
+	 * Stops taking messages, lets the queued ones finish and unregisters the MBean
+	 */
+	public void shutdown()
+	{
+		pool.shutdown();
+
+		try
+		{
+			if(name != null)
+			{
+				ManagementFactory.getPlatformMBeanServer().unregisterMBean(name);
+			}
+		}
+		catch (Exception e)
+		{
+		}
+	}
+
+	private void recordQueueDepth()
+	{
+		int depth = pool.getQueue().size();
+		int peak;
+
+		while(depth > (peak = peakQueueDepth.get()) && !peakQueueDepth.compareAndSet(peak, depth))
+		{
+		}
+	}
+
+	/**
+	 * Most messages handled at once
+	 * @return worker count
+	 */
+	public int getWorkers()
+	{
+		return workers;
+	}
+
+	/**
+	 * Most messages waiting for a worker before further ones are held back or shed
+	 * @return queue length
+	 */
+	public int getBacklog()
+	{
+		return backlog;
+	}
+
+	/**
+	 * Number of messages waiting for a worker
+	 * @return queue depth
+	 */
+	public int getQueueDepth()
+	{
+		return pool.getQueue().size();
+	}
+
+	/**
+	 * Largest number of messages seen waiting for a worker
+	 * @return queue depth
+	 */
+	public int getPeakQueueDepth()
+	{
+		return peakQueueDepth.get();
+	}
+
+	/**
+	 * Number of workers handling a message
+	 * @return busy worker count
+	 */
+	public int getActiveWorkers()
+	{
+		return pool.getActiveCount();
+	}
+
+	/**
+	 * Number of messages handled so far
+	 * @return message count
+	 */
+	public long getHandled()
+	{
+		return pool.getCompletedTaskCount();
+	}
+
+	/**
+	 * Number of messages shed because the queue stayed full
+	 * @return message count
+	 */
+	public long getRejected()
+	{
+		return rejected.get();
+	}
+
+	public String toString()
+	{
+		return "workers=" + getActiveWorkers() + "/" + workers +
+			" queue=" + getQueueDepth() + "/" + backlog +
+			" peakQueue=" + getPeakQueueDepth() +
+			" handled=" + getHandled() +
+			" rejected=" + getRejected();
+	}
+
+	private static int fromProperty(String key, int fallback)
+	{
+		String property = System.getProperty(key);
+
+		return (property == null) ? fallback : Integer.parseInt(property);
+	}
+}
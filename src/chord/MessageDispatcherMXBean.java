@@ -0,0 +1,21 @@
+package chord;
+
+/**
+ * Management interface of a MessageDispatcher, as seen through JMX
+ */
+public interface MessageDispatcherMXBean
+{
+	public int getWorkers();
+
+	public int getBacklog();
+
+	public int getQueueDepth();
+
+	public int getPeakQueueDepth();
+
+	public int getActiveWorkers();
+
+	public long getHandled();
+
+	public long getRejected();
+}
@@ -0,0 +1,229 @@
+package srudp;
+
+import java.io.*;
+import java.net.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.util.*;
+
+/**
+ * Acknowledgements waiting to go back to the addresses that sent us DATA.  Rather
+ * than answering every packet with a datagram of its own, the acknowledgement of a
+ * request is held for a short delay in the hope that its reply, or any other DATA
+ * packet to the same address, leaves in the meantime and can carry it.  Other
+ * packets have nothing coming back to ride on, so their acknowledgements are only
+ * held until the I/O thread next gets round to them, which still gathers up a
+ * burst of packets read together.  Whatever is still waiting when its time runs
+ * out, or once enough acknowledgements for one address pile up, goes out together
+ * in a single ACK packet.
+ *
+ * The queue is shared by every socket in the process.  The I/O thread sends the
+ * acknowledgements that fall due.
+ */
+class AckQueue
+{
+	private static AckQueue defaultQueue = null;
+
+	private final long ACK_DELAY = 5 * 1000000L;	//nanoseconds
+
+	//Acknowledgements for one address that are sent straight away, without waiting
+	private final int ACK_EVERY = 8;
+
+	private Map<InetSocketAddress, Pending> pending;
+
+	/**
+	 * Acknowledgements waiting for one address
+	 */
+	private static class Pending
+	{
+		Endpoint endpoint;
+		IntegrityMode integrity;
+		long deadline;
+		int count;
+		int[] streamIds = new int[Packet.MAX_ACKS];
+		int[] seqs = new int[Packet.MAX_ACKS];
+	}
+
+	/**
+	 * Returns the queue shared by every socket
+	 * @return acknowledgement queue
+	 */
+	static synchronized AckQueue getDefault()
+	{
+		if(defaultQueue == null)
+		{
+			defaultQueue = new AckQueue();
+		}
+
+		return defaultQueue;
+	}
+
+	private AckQueue()
+	{
+		pending = new LinkedHashMap<InetSocketAddress, Pending>();
+	}
+
+	/**
+	 * Queues the acknowledgement of a DATA packet that was accepted
+	 * @param endpoint endpoint to send the acknowledgement from if nothing carries it
+	 * @param dest address the packet came from
+	 * @param data packet to acknowledge
+	 * @throws IOException if the I/O thread could not be started
+	 */
+	void add(Endpoint endpoint, InetSocketAddress dest, Packet data) throws IOException
+	{
+		Pending full = null;
+		boolean sooner = false;
+
+		synchronized(this)
+		{
+			Pending acks = pending.get(dest);
+			long deadline = System.nanoTime() + (data.is(Packet.REQUEST) ? ACK_DELAY : 0);
+
+			if(acks == null)
+			{
+				acks = new Pending();
+				acks.integrity = data.integrity;
+				acks.deadline = deadline;
+				pending.put(dest, acks);
+				sooner = true;
+			}
+			else if(deadline - acks.deadline < 0)
+			{
+				acks.deadline = deadline;
+				sooner = true;
+			}
+
+			acks.endpoint = endpoint;
+			acks.streamIds[acks.count] = data.streamId;
+			acks.seqs[acks.count] = data.seq;
+			acks.count++;
+
+			if(acks.count >= ACK_EVERY)
+			{
+				full = pending.remove(dest);
+			}
+		}
+
+		if(full != null)
+		{
+			send(full, dest);
+		}
+		else if(sooner)
+		{
+			//The I/O thread may be asleep until a later deadline, or none at all
+			RUDPEventLoop.getDefault().wakeup();
+		}
+	}
+
+	/**
+	 * Attaches acknowledgements waiting for an address to a packet about to be sent
+	 * there
+	 * @param dest address the packet is going to
+	 * @param packet DATA packet to carry them
+	 * @param room most acknowledgements the packet has room for
+	 */
+	synchronized void attach(InetSocketAddress dest, Packet packet, int room)
+	{
+		Pending acks = pending.get(dest);
+
+		if(acks == null || room <= 0)
+		{
+			return;
+		}
+
+		int count = Math.min(acks.count, room);
+		packet.attachAcks(count, Arrays.copyOf(acks.streamIds, count), Arrays.copyOf(acks.seqs, count));
+
+		if(count == acks.count)
+		{
+			pending.remove(dest);
+		}
+		else
+		{
+			acks.count -= count;
+			System.arraycopy(acks.streamIds, count, acks.streamIds, 0, acks.count);
+			System.arraycopy(acks.seqs, count, acks.seqs, 0, acks.count);
+		}
+	}
+
+	/**
+	 * Sends every acknowledgement whose delay has run out.  Called by the I/O thread.
+	 * @param now current System.nanoTime()
+	 * @return System.nanoTime() at which the next acknowledgement falls due, or
+	 * Long.MAX_VALUE if none are waiting
+	 */
+	long flush(long now)
+	{
+		Map<InetSocketAddress, Pending> due = null;
+		long next = Long.MAX_VALUE;
+
+		synchronized(this)
+		{
+			Iterator<Map.Entry<InetSocketAddress, Pending>> it = pending.entrySet().iterator();
+			while(it.hasNext())
+			{
+				Map.Entry<InetSocketAddress, Pending> entry = it.next();
+
+				long deadline = entry.getValue().deadline;
+
+				if(deadline - now > 0)
+				{
+					if(next == Long.MAX_VALUE || deadline - next < 0)
+					{
+						next = deadline;
+					}
+					continue;
+				}
+
+				if(due == null)
+				{
+					due = new LinkedHashMap<InetSocketAddress, Pending>();
+				}
+				due.put(entry.getKey(), entry.getValue());
+				it.remove();
+			}
+		}
+
+		if(due != null)
+		{
+			for(Map.Entry<InetSocketAddress, Pending> entry : due.entrySet())
+			{
+				send(entry.getValue(), entry.getKey());
+			}
+		}
+
+		return next;
+	}
+
+	/**
+	 * Sends acknowledgements in an ACK packet of their own
+	 * @param acks acknowledgements to send
+	 * @param dest address to send them to
+	 */
+	private void send(Pending acks, InetSocketAddress dest)
+	{
+		ByteBuffer packet = Packet.acks(acks.count, acks.streamIds, acks.seqs, acks.integrity).encode();
+
+		try
+		{
+			while(acks.endpoint.send(packet, dest) == 0)
+			{
+			}
+			RemoteMetrics.forAddress(dest).datagramSent();
+		}
+		catch (ClosedChannelException e)
+		{
+			//The socket went away; the sender will retransmit and be acknowledged again
+		}
+		catch (IOException e)
+		{
+			System.out.println("Exception: " + e);
+			e.printStackTrace();
+		}
+		finally
+		{
+			BufferPool.getDefault().release(packet);
+		}
+	}
+}
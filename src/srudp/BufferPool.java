@@ -0,0 +1,105 @@
+package srudp;
+
+import java.nio.*;
+import java.util.*;
+
+/**
+ * Bounded pool of direct buffers, each large enough for any datagram srudp sends.
+ * Buffers are taken for every datagram sent or received and given back once
+ * nothing refers to them anymore.  A buffer that is never given back is simply
+ * left to the garbage collector, and once the pool is full any extra buffers given
+ * back are dropped the same way.
+ */
+public class BufferPool
+{
+	//Header, largest fragment and largest integrity trailer, rounded up
+	static final int BUFFER_SIZE = 2048;
+
+	private final int MAX_POOLED = 1024;
+
+	private static BufferPool defaultPool = null;
+
+	private ArrayDeque<ByteBuffer> free;
+	private long allocations;
+	private long reuses;
+
+	/**
+	 * Returns the pool shared by every srudp endpoint in the process
+	 * @return pool
+	 */
+	public static synchronized BufferPool getDefault()
+	{
+		if(defaultPool == null)
+		{
+			defaultPool = new BufferPool();
+		}
+
+		return defaultPool;
+	}
+
+	public BufferPool()
+	{
+		free = new ArrayDeque<ByteBuffer>();
+		allocations = 0;
+		reuses = 0;
+	}
+
+	/**
+	 * Takes a cleared buffer from the pool, allocating one if the pool is empty
+	 * @return direct buffer of BUFFER_SIZE bytes
+	 */
+	public synchronized ByteBuffer acquire()
+	{
+		ByteBuffer buffer = free.poll();
+
+		if(buffer == null)
+		{
+			allocations++;
+			return ByteBuffer.allocateDirect(BUFFER_SIZE);
+		}
+
+		reuses++;
+		buffer.clear();
+		return buffer;
+	}
+
+	/**
+	 * Gives a buffer back to the pool.  The caller must not touch it, or any view
+	 * of it, afterwards.  Buffers that did not come from a pool are ignored.
+	 * @param buffer buffer to give back
+	 */
+	public synchronized void release(ByteBuffer buffer)
+	{
+		if(buffer.isDirect() && buffer.capacity() == BUFFER_SIZE && free.size() < MAX_POOLED)
+		{
+			free.push(buffer);
+		}
+	}
+
+	/**
+	 * Number of buffers waiting in the pool
+	 * @return free buffer count
+	 */
+	public synchronized int getFreeCount()
+	{
+		return free.size();
+	}
+
+	/**
+	 * Number of buffers the pool had to allocate because it was empty
+	 * @return allocation count
+	 */
+	public synchronized long getAllocations()
+	{
+		return allocations;
+	}
+
+	/**
+	 * Number of buffers handed out from the pool instead of being allocated
+	 * @return reuse count
+	 */
+	public synchronized long getReuses()
+	{
+		return reuses;
+	}
+}
@@ -0,0 +1,135 @@
+package srudp;
+
+import java.nio.*;
+import java.util.zip.*;
+
+/**
+ * Deflate compression of whole messages.  A compressed message is flagged
+ * COMPRESSED on every packet carrying it, so the receiver knows to inflate it
+ * without any prior agreement, and is sent as the original length followed by
+ * the deflate stream.  Messages that do not get smaller are sent as they are.
+ *
+ * Only messages of at least the threshold are worth the CPU.  The threshold new
+ * sockets start with is 1024 bytes unless the srudp.compression system property
+ * names another; 0 turns compression off.
+ */
+class Compression
+{
+	//Smallest message new sockets compress, or 0 if compression is off
+	static final int DEFAULT_THRESHOLD = fromProperty();
+
+	private static ThreadLocal<Deflater> deflaters = new ThreadLocal<Deflater>()
+	{
+		protected Deflater initialValue()
+		{
+			return new Deflater(Deflater.BEST_SPEED);
+		}
+	};
+
+	private static ThreadLocal<Inflater> inflaters = new ThreadLocal<Inflater>()
+	{
+		protected Inflater initialValue()
+		{
+			return new Inflater();
+		}
+	};
+
+	/**
+	 * Compresses a message
+	 * @param message message to compress
+	 * @return length prefixed deflate stream, or null if it would not be smaller
+	 * than the message
+	 */
+	static byte[] deflate(byte[] message)
+	{
+		//Nothing fits in a message no longer than its length prefix
+		if(message.length <= 4)
+		{
+			return null;
+		}
+
+		Deflater deflater = deflaters.get();
+		deflater.reset();
+		deflater.setInput(message);
+		deflater.finish();
+
+		//Giving up as soon as the output catches up with the input
+		byte[] compressed = new byte[message.length];
+		ByteBuffer.wrap(compressed).putInt(message.length);
+		int length = 4;
+
+		while(!deflater.finished() && length < compressed.length)
+		{
+			length += deflater.deflate(compressed, length, compressed.length - length);
+		}
+
+		if(!deflater.finished() || length == compressed.length)
+		{
+			return null;
+		}
+
+		byte[] trimmed = new byte[length];
+		System.arraycopy(compressed, 0, trimmed, 0, length);
+		return trimmed;
+	}
+
+	/**
+	 * Restores a compressed message
+	 * @param compressed length prefixed deflate stream, consumed by the call
+	 * @return flipped heap buffer holding the message, or null if the stream is
+	 * malformed or would inflate past Packet.MAX_MESSAGE_SIZE
+	 */
+	static ByteBuffer inflate(ByteBuffer compressed)
+	{
+		if(compressed.remaining() < 4)
+		{
+			return null;
+		}
+
+		int length = compressed.getInt();
+		if(length < 0 || length > Packet.MAX_MESSAGE_SIZE)
+		{
+			return null;
+		}
+
+		Inflater inflater = inflaters.get();
+		inflater.reset();
+		inflater.setInput(compressed);
+
+		byte[] message = new byte[length];
+		int inflated = 0;
+
+		try
+		{
+			while(!inflater.finished() && inflated < length)
+			{
+				int count = inflater.inflate(message, inflated, length - inflated);
+
+				if(count == 0 && (inflater.needsInput() || inflater.needsDictionary()))
+				{
+					return null;
+				}
+
+				inflated += count;
+			}
+		}
+		catch (DataFormatException e)
+		{
+			return null;
+		}
+
+		if(inflated != length || !inflater.finished())
+		{
+			return null;
+		}
+
+		return ByteBuffer.wrap(message);
+	}
+
+	private static int fromProperty()
+	{
+		String property = System.getProperty("srudp.compression");
+
+		return (property == null) ? 1024 : Integer.parseInt(property);
+	}
+}
@@ -0,0 +1,262 @@
+package srudp;
+
+import java.net.*;
+import java.util.*;
+
+/**
+ * Delay based congestion control for a single remote address, in the style of
+ * LEDBAT (RFC 6817).  The window limits how many packets every socket talking to
+ * the address may have in flight together.  It grows while the round trip time
+ * stays close to the lowest one seen and shrinks as soon as queues start building
+ * up along the path, so bulk transfers such as key handoffs make way for other
+ * traffic on a busy link long before anything is lost.  A retransmission timeout
+ * halves the window, as with AIMD.
+ *
+ * LEDBAT proper measures one way delay, which needs timestamps in every packet;
+ * round trip samples from the retransmission timer are used instead, which also
+ * reacts to queues on the return path.
+ *
+ * Windows are shared by every socket talking to the same address and can be
+ * looked up through getWindows() for monitoring.
+ */
+public class CongestionWindow
+{
+	private static final int MAX_WINDOWS = 4096;
+
+	private static Map<InetSocketAddress, CongestionWindow> windows =
+		new LinkedHashMap<InetSocketAddress, CongestionWindow>(16, 0.75f, true)
+		{
+			protected boolean removeEldestEntry(Map.Entry<InetSocketAddress, CongestionWindow> eldest)
+			{
+				return size() > MAX_WINDOWS;
+			}
+		};
+
+	private final double INITIAL_WINDOW = 4;		//packets
+	private final double MIN_WINDOW = 2;			//packets
+	private final double MAX_WINDOW = 256;			//packets
+	private final double TARGET_DELAY = 50;			//milliseconds
+	private final double GAIN = 1;
+	private final long BASE_INTERVAL = 60000;		//milliseconds
+	private final int BASE_HISTORY = 10;
+
+	private InetSocketAddress sockAddr;
+	private double window;
+	private int inFlight;
+	private double queuingDelay;
+	private long lastDecrease;
+	private long losses;
+
+	//Lowest round trip time seen in each of the last few intervals, newest last
+	private double[] baseDelays;
+	private int baseCount;
+	private long baseStarted;
+
+	/**
+	 * Returns the window for a remote address, creating it if needed
+	 * @param sockAddr remote address
+	 * @return window--never null
+	 */
+	public static CongestionWindow forAddress(InetSocketAddress sockAddr)
+	{
+		synchronized(windows)
+		{
+			CongestionWindow window = windows.get(sockAddr);
+
+			if(window == null)
+			{
+				window = new CongestionWindow(sockAddr);
+				windows.put(sockAddr, window);
+			}
+
+			return window;
+		}
+	}
+
+	/**
+	 * Returns the window for a remote address without creating one
+	 * @param sockAddr remote address
+	 * @return window, or null if none is kept for the address
+	 */
+	static CongestionWindow find(InetSocketAddress sockAddr)
+	{
+		synchronized(windows)
+		{
+			return windows.get(sockAddr);
+		}
+	}
+
+	/**
+	 * Returns every window currently kept, for monitoring
+	 * @return copy of the windows keyed by remote address
+	 */
+	public static Map<InetSocketAddress, CongestionWindow> getWindows()
+	{
+		synchronized(windows)
+		{
+			return new HashMap<InetSocketAddress, CongestionWindow>(windows);
+		}
+	}
+
+	private CongestionWindow(InetSocketAddress sockAddr)
+	{
+		this.sockAddr = sockAddr;
+		window = INITIAL_WINDOW;
+		inFlight = 0;
+		queuingDelay = 0;
+		lastDecrease = 0;
+		losses = 0;
+		baseDelays = new double[BASE_HISTORY];
+		baseCount = 0;
+		baseStarted = 0;
+	}
+
+	/**
+	 * Whether another packet may be put in flight
+	 * @return true if the window has room
+	 */
+	public synchronized boolean canSend()
+	{
+		return inFlight < (int)window;
+	}
+
+	/**
+	 * Records that a packet was sent for the first time
+	 */
+	public synchronized void sent()
+	{
+		inFlight++;
+	}
+
+	/**
+	 * Records that a packet was acknowledged, growing or shrinking the window by how
+	 * far the queuing delay is from the target
+	 * @param rtt round trip time of the packet in milliseconds, or a negative number
+	 * if it was retransmitted and so cannot be timed
+	 */
+	public synchronized void acknowledged(double rtt)
+	{
+		inFlight = Math.max(inFlight - 1, 0);
+
+		if(rtt < 0)
+		{
+			return;
+		}
+
+		queuingDelay = rtt - updateBaseDelay(rtt);
+
+		double offTarget = (TARGET_DELAY - queuingDelay) / TARGET_DELAY;
+		window += GAIN * offTarget / window;
+		window = Math.min(Math.max(window, MIN_WINDOW), MAX_WINDOW);
+	}
+
+	/**
+	 * Records that packets left flight without being acknowledged, because the
+	 * socket gave up on them or was closed
+	 * @param packets number of packets
+	 */
+	public synchronized void abandoned(int packets)
+	{
+		inFlight = Math.max(inFlight - packets, 0);
+	}
+
+	/**
+	 * Halves the window after a packet went unacknowledged.  A burst of losses
+	 * within one round trip only counts once.
+	 * @param rtt current round trip time estimate in milliseconds
+	 */
+	public synchronized void lost(double rtt)
+	{
+		long now = System.currentTimeMillis();
+		losses++;
+
+		if(now - lastDecrease >= rtt)
+		{
+			window = Math.max(window / 2, MIN_WINDOW);
+			lastDecrease = now;
+		}
+	}
+
+	/**
+	 * Folds a sample into the history of lowest round trip times
+	 * @param rtt round trip time in milliseconds
+	 * @return lowest round trip time in the history
+	 */
+	private double updateBaseDelay(double rtt)
+	{
+		long now = System.currentTimeMillis();
+
+		if(baseCount == 0 || now - baseStarted >= BASE_INTERVAL)
+		{
+			if(baseCount == BASE_HISTORY)
+			{
+				System.arraycopy(baseDelays, 1, baseDelays, 0, BASE_HISTORY - 1);
+				baseCount--;
+			}
+
+			baseDelays[baseCount++] = rtt;
+			baseStarted = now;
+		}
+		else
+		{
+			baseDelays[baseCount - 1] = Math.min(baseDelays[baseCount - 1], rtt);
+		}
+
+		double base = rtt;
+		for(int b = 0; b < baseCount; b++)
+		{
+			base = Math.min(base, baseDelays[b]);
+		}
+
+		return base;
+	}
+
+	public InetSocketAddress getSockAddr()
+	{
+		return sockAddr;
+	}
+
+	/**
+	 * Number of packets that may be in flight
+	 * @return congestion window in packets
+	 */
+	public synchronized double getWindow()
+	{
+		return window;
+	}
+
+	/**
+	 * Number of packets currently in flight
+	 * @return packets sent and not yet acknowledged
+	 */
+	public synchronized int getInFlight()
+	{
+		return inFlight;
+	}
+
+	/**
+	 * How far the last round trip time was above the lowest one seen
+	 * @return queuing delay in milliseconds
+	 */
+	public synchronized double getQueuingDelay()
+	{
+		return queuingDelay;
+	}
+
+	/**
+	 * Number of times a packet to this address went unacknowledged
+	 * @return loss count
+	 */
+	public synchronized long getLosses()
+	{
+		return losses;
+	}
+
+	public synchronized String toString()
+	{
+		return sockAddr + " cwnd=" + String.format("%.2f", window) +
+			" inFlight=" + inFlight +
+			" queuingDelay=" + String.format("%.2f", queuingDelay) + "ms" +
+			" losses=" + losses;
+	}
+}
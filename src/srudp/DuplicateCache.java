@@ -0,0 +1,122 @@
+package srudp;
+
+import java.net.*;
+import java.util.*;
+
+/**
+ * Remembers which packets each sender has recently had accepted, so a packet
+ * retransmitted after its acknowledgement was lost is recognised even once the
+ * receive window it went through has been forgotten or replaced.  Packets are
+ * identified by stream id and sequence number and are remembered for a fixed
+ * time, well past the point where the sender would have given up on them.
+ */
+class DuplicateCache
+{
+	private final long RETENTION = 10000;	//milliseconds
+	private final int MAX_PER_SENDER = 1024;
+	private final int MAX_SENDERS = 1024;
+
+	private Map<InetSocketAddress, LinkedHashMap<Long, Long>> senders;
+
+	public DuplicateCache()
+	{
+		//Least recently heard from senders are forgotten once too many are tracked
+		senders = new LinkedHashMap<InetSocketAddress, LinkedHashMap<Long, Long>>(16, 0.75f, true)
+		{
+			protected boolean removeEldestEntry(Map.Entry<InetSocketAddress, LinkedHashMap<Long, Long>> eldest)
+			{
+				return size() > MAX_SENDERS;
+			}
+		};
+	}
+
+	/**
+	 * Checks whether a packet was accepted recently
+	 * @param source address the packet came from
+	 * @param streamId stream the packet belongs to
+	 * @param seq sequence number of the packet
+	 * @return true if the packet is a duplicate
+	 */
+	public boolean contains(InetSocketAddress source, int streamId, int seq)
+	{
+		LinkedHashMap<Long, Long> history = senders.get(source);
+
+		if(history == null)
+		{
+			return false;
+		}
+
+		expire(history, System.currentTimeMillis());
+		return history.containsKey(key(streamId, seq));
+	}
+
+	/**
+	 * Records that a packet was accepted
+	 * @param source address the packet came from
+	 * @param streamId stream the packet belongs to
+	 * @param seq sequence number of the packet
+	 */
+	public void add(InetSocketAddress source, int streamId, int seq)
+	{
+		long now = System.currentTimeMillis();
+		LinkedHashMap<Long, Long> history = senders.get(source);
+
+		if(history == null)
+		{
+			history = new LinkedHashMap<Long, Long>();
+			senders.put(source, history);
+		}
+
+		expire(history, now);
+
+		Long key = key(streamId, seq);
+		if(!history.containsKey(key))
+		{
+			history.put(key, now);
+
+			if(history.size() > MAX_PER_SENDER)
+			{
+				Iterator<Long> it = history.keySet().iterator();
+				it.next();
+				it.remove();
+			}
+		}
+	}
+
+	/**
+	 * Forgets that a packet was accepted, so it is taken again when retransmitted
+	 * @param source address the packet came from
+	 * @param streamId stream the packet belongs to
+	 * @param seq sequence number of the packet
+	 */
+	public void remove(InetSocketAddress source, int streamId, int seq)
+	{
+		LinkedHashMap<Long, Long> history = senders.get(source);
+
+		if(history != null)
+		{
+			history.remove(key(streamId, seq));
+		}
+	}
+
+	/**
+	 * Forgets packets that were accepted longer than RETENTION ago.  Entries are
+	 * kept in the order they were added, so only the oldest need to be looked at.
+	 * @param history packets accepted from one sender
+	 * @param now current time in milliseconds
+	 */
+	private void expire(LinkedHashMap<Long, Long> history, long now)
+	{
+		Iterator<Long> it = history.values().iterator();
+
+		while(it.hasNext() && now - it.next() > RETENTION)
+		{
+			it.remove();
+		}
+	}
+
+	private static Long key(int streamId, int seq)
+	{
+		return ((long)streamId << 32) | (seq & 0xFFFFFFFFL);
+	}
+}
@@ -0,0 +1,52 @@
+package srudp;
+
+import java.io.*;
+import java.net.*;
+import java.nio.*;
+import java.nio.channels.*;
+
+/**
+ * One end of a Transport, behaving like a DatagramChannel.  Arrivals are noticed
+ * either by selecting on the endpoint's channel or, for endpoints that have none,
+ * through a listener the endpoint calls itself.
+ */
+public interface Endpoint
+{
+	/**
+	 * Sends a datagram
+	 * @param datagram datagram to send, consumed if it was sent
+	 * @param dest address to send it to
+	 * @return number of bytes sent, or 0 if the endpoint is not blocking and has no
+	 * room to send right now
+	 * @throws IOException on network I/O error
+	 */
+	int send(ByteBuffer datagram, InetSocketAddress dest) throws IOException;
+
+	/**
+	 * Receives a datagram.  Whatever does not fit in buffer is lost.
+	 * @param buffer buffer to copy the datagram into
+	 * @return address the datagram came from, or null if the endpoint is not
+	 * blocking and nothing has arrived
+	 * @throws ClosedChannelException if the endpoint was closed
+	 * @throws IOException on network I/O error
+	 */
+	InetSocketAddress receive(ByteBuffer buffer) throws IOException;
+
+	/**
+	 * Channel to select on to learn when datagrams arrive
+	 * @return non-blocking selectable channel, or null if the endpoint calls its
+	 * listener instead
+	 */
+	SelectableChannel getChannel();
+
+	/**
+	 * Has the endpoint tell listener whenever datagrams arrive with none waiting to
+	 * be received.  Only used for endpoints without a channel.
+	 * @param listener callback, run on whichever thread delivered the datagram
+	 */
+	void setListener(Runnable listener);
+
+	boolean isOpen();
+
+	void close() throws IOException;
+}
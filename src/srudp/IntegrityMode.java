@@ -0,0 +1,197 @@
+package srudp;
+
+import java.nio.*;
+import java.security.*;
+
+/**
+ * How a datagram is protected against corruption.  The mode a packet was sent with
+ * is named in its header, so a receiver can check any mode without being told in
+ * advance, and acknowledgements sent on their own go back in the mode of the
+ * packets they acknowledge.
+ *
+ * SHA1 appends a 20 byte digest.  CRC32C appends a 4 byte checksum, which together
+ * with the sequence number in the header is enough to catch corruption at a
+ * fraction of the cost.
+ */
+public enum IntegrityMode
+{
+	SHA1((byte)0x00, 20)
+	{
+		private ThreadLocal<MessageDigest> digests = new ThreadLocal<MessageDigest>()
+		{
+			protected MessageDigest initialValue()
+			{
+				try
+				{
+					return MessageDigest.getInstance("SHA-1");
+				}
+				catch (NoSuchAlgorithmException e)
+				{
+					throw new IllegalStateException(e);
+				}
+			}
+		};
+
+		byte[] compute(ByteBuffer contents)
+		{
+			MessageDigest digest = digests.get();
+			digest.update(contents);
+			return digest.digest();
+		}
+	},
+	CRC32C((byte)0x04, 4)
+	{
+		private ThreadLocal<java.util.zip.CRC32C> checksums = new ThreadLocal<java.util.zip.CRC32C>()
+		{
+			protected java.util.zip.CRC32C initialValue()
+			{
+				return new java.util.zip.CRC32C();
+			}
+		};
+
+		byte[] compute(ByteBuffer contents)
+		{
+			return ByteBuffer.allocate(4).putInt(checksum(contents)).array();
+		}
+
+		void sign(ByteBuffer packet)
+		{
+			ByteBuffer contents = packet.duplicate();
+			contents.flip();
+			packet.putInt(checksum(contents));
+		}
+
+		boolean verify(ByteBuffer packet)
+		{
+			if(packet.remaining() < 4)
+			{
+				return false;
+			}
+
+			ByteBuffer contents = packet.duplicate();
+			contents.limit(packet.limit() - 4);
+			return packet.getInt(packet.limit() - 4) == checksum(contents);
+		}
+
+		private int checksum(ByteBuffer contents)
+		{
+			java.util.zip.CRC32C checksum = checksums.get();
+			checksum.reset();
+			checksum.update(contents);
+			return (int)checksum.getValue();
+		}
+	};
+
+	//Header flag bits used to name the mode
+	static final byte FLAG_MASK = 0x04;
+
+	private static IntegrityMode defaultMode = fromProperty();
+
+	private byte flag;
+	private int length;
+
+	private IntegrityMode(byte flag, int length)
+	{
+		this.flag = flag;
+		this.length = length;
+	}
+
+	/**
+	 * Computes the trailer for the remaining bytes of contents
+	 * @param contents bytes to protect, consumed by the call
+	 * @return trailer bytes
+	 */
+	abstract byte[] compute(ByteBuffer contents);
+
+	/**
+	 * Header flag bits naming this mode
+	 * @return flag bits
+	 */
+	byte getFlag()
+	{
+		return flag;
+	}
+
+	/**
+	 * Number of bytes this mode appends to every datagram
+	 * @return trailer length
+	 */
+	public int getLength()
+	{
+		return length;
+	}
+
+	/**
+	 * Appends the trailer covering everything before the buffer's position
+	 * @param packet datagram being built, with room left for the trailer
+	 */
+	void sign(ByteBuffer packet)
+	{
+		ByteBuffer contents = packet.duplicate();
+		contents.flip();
+		packet.put(compute(contents));
+	}
+
+	/**
+	 * Checks the trailer at the end of a received datagram
+	 * @param packet flipped buffer holding the datagram, left untouched
+	 * @return true if the trailer matches the contents
+	 */
+	boolean verify(ByteBuffer packet)
+	{
+		if(packet.remaining() < length)
+		{
+			return false;
+		}
+
+		ByteBuffer contents = packet.duplicate();
+		contents.limit(packet.limit() - length);
+		byte[] expected = compute(contents);
+
+		for(int b = 0; b < length; b++)
+		{
+			if(packet.get(packet.limit() - length + b) != expected[b])
+			{
+				return false;
+			}
+		}
+
+		return true;
+	}
+
+	/**
+	 * Returns the mode named by a packet's header flags
+	 * @param flags header flags
+	 * @return integrity mode
+	 */
+	static IntegrityMode fromFlags(byte flags)
+	{
+		return ((flags & FLAG_MASK) == CRC32C.flag) ? CRC32C : SHA1;
+	}
+
+	/**
+	 * Mode new sockets send with.  Starts as CRC32C unless the srudp.integrity
+	 * system property names another mode.
+	 * @return default mode
+	 */
+	public static synchronized IntegrityMode getDefault()
+	{
+		return defaultMode;
+	}
+
+	/**
+	 * Changes the mode new sockets send with
+	 * @param mode new default mode
+	 */
+	public static synchronized void setDefault(IntegrityMode mode)
+	{
+		defaultMode = mode;
+	}
+
+	private static IntegrityMode fromProperty()
+	{
+		String property = System.getProperty("srudp.integrity");
+
+		return (property == null) ? CRC32C : IntegrityMode.valueOf(property.toUpperCase());
+	}
+}
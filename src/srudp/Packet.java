@@ -0,0 +1,487 @@
+package srudp;
+
+import java.nio.*;
+import java.util.*;
+
+/**
+ * Wire format shared by RUDPSocket and RUDPServerSocket.  Every datagram carries
+ * a header naming the sending stream, the sequence number of the packet, the
+ * oldest sequence number the sender is still trying to deliver and, for requests
+ * and replies, the id of the request, followed by the payload (DATA only) and an
+ * integrity trailer over everything before it.  The flags name which IntegrityMode
+ * produced the trailer, so the receiver can check it without any prior agreement.
+ *
+ * Messages too large for one datagram are split into fragments that are sent as
+ * consecutive packets of the same stream.  Every fragment but the last is flagged
+ * MORE_FRAGMENTS and every fragment but the first is flagged CONTINUATION, so the
+ * receiver can put the message back together once the fragments are in order.
+ *
+ * Large messages may be compressed first, in which case every packet carrying
+ * them is flagged COMPRESSED; see Compression.
+ *
+ * Small messages headed the same way are coalesced.  A packet flagged BUNDLE
+ * carries several whole messages back to back, each behind a header of its own
+ * holding the flags and request id it would have been sent with, and is split
+ * back into separate messages once received in order.
+ *
+ * Acknowledgements are batched by the AckQueue.  Any packet flagged ACKS carries
+ * a block of (stream id, sequence) pairs right after the header, each naming a
+ * DATA packet that arrived.  The block rides on whatever DATA packet goes to the
+ * same address next, or failing that on an ACK packet of its own, whose stream id
+ * and sequence are unused.
+ *
+ * Datagrams are built in and parsed from buffers taken from the BufferPool.  A
+ * decoded packet's payload is a view of the datagram it arrived in, so whoever
+ * ends up with the packet must release() it once done with the payload.
+ *
+ * DATA: [type][flags][stream id][sequence][floor][request id][acks][payload][CRC32C or SHA-1]
+ * ACK:  [type][flags][0][0][0][0][acks][CRC32C or SHA-1]
+ * acks: [count][stream id][sequence]...  (only if flagged ACKS)
+ * bundle payload: [flags][request id][length][message]...  (only if flagged BUNDLE)
+ */
+class Packet
+{
+	static final byte DATA = 0;
+	static final byte ACK = 1;
+
+	//Flags describing a DATA packet
+	static final byte REQUEST = 0x01;
+	static final byte REPLY = 0x02;
+	static final byte MORE_FRAGMENTS = 0x08;
+	static final byte CONTINUATION = 0x10;
+
+	//Flag marking a packet that carries an acknowledgement block
+	static final byte ACKS = 0x20;
+
+	//Flag marking a DATA packet whose payload holds several small messages
+	static final byte BUNDLE = 0x40;
+
+	//Flag marking a message that was deflated by Compression
+	static final byte COMPRESSED = (byte)0x80;
+
+	static final int HEADER_SIZE = 1 + 1 + 4 + 4 + 4 + 4;
+
+	//Most acknowledgements a single packet carries
+	static final int MAX_ACKS = 16;
+
+	//Size of each acknowledgement in a block, after the one byte count
+	static final int ACK_SIZE = 4 + 4;
+
+	//Largest payload carried by one packet, keeping datagrams within a typical MTU
+	static final int MAX_FRAGMENT_SIZE = 1400;
+
+	//Largest message coalesced with others into a bundle
+	static final int MAX_BUNDLED_SIZE = 512;
+
+	//Header in front of each message in a bundle: flags, request id and length
+	static final int BUNDLE_HEADER_SIZE = 1 + 4 + 2;
+
+	//Largest message a receiver will reassemble
+	static final int MAX_MESSAGE_SIZE = 16 * 1024 * 1024;
+
+	//Number of unacknowledged packets a sender may have outstanding, and the
+	//number of out of order packets a receiver will buffer
+	static final int WINDOW_SIZE = 32;
+
+	byte type;
+	byte flags;
+	int streamId;
+	int seq;
+	int floor;
+	int requestId;
+	ByteBuffer payload;
+	IntegrityMode integrity;
+
+	//Acknowledgements carried by the packet, if flagged ACKS
+	int ackCount;
+	int[] ackStreamIds;
+	int[] ackSeqs;
+
+	//Pooled datagram the payload is a view of, if the packet was received
+	private ByteBuffer datagram;
+
+	private Packet()
+	{
+	}
+
+	/**
+	 * Creates a packet to be sent
+	 * @param type DATA or ACK
+	 * @param flags REQUEST, REPLY or 0
+	 * @param streamId stream the packet belongs to
+	 * @param seq sequence number of the packet within the stream
+	 * @param floor every sequence number before this one has been delivered or
+	 * given up on by the sender
+	 * @param requestId request the packet asks or answers, if flagged as either
+	 * @param payload contents of the packet or null for an ACK
+	 * @param integrity how the datagram is protected
+	 */
+	Packet(byte type, byte flags, int streamId, int seq, int floor, int requestId, ByteBuffer payload, IntegrityMode integrity)
+	{
+		this.type = type;
+		this.flags = flags;
+		this.streamId = streamId;
+		this.seq = seq;
+		this.floor = floor;
+		this.requestId = requestId;
+		this.payload = payload;
+		this.integrity = integrity;
+	}
+
+	/**
+	 * Creates a packet carrying nothing but acknowledgements
+	 * @param count number of acknowledgements
+	 * @param streamIds stream of each acknowledged packet
+	 * @param seqs sequence number of each acknowledged packet
+	 * @param integrity how the datagram is protected
+	 * @return ACK packet
+	 */
+	static Packet acks(int count, int[] streamIds, int[] seqs, IntegrityMode integrity)
+	{
+		Packet ack = new Packet(ACK, (byte)0, 0, 0, 0, 0, null, integrity);
+		ack.attachAcks(count, streamIds, seqs);
+		return ack;
+	}
+
+	/**
+	 * Has the packet carry acknowledgements when encoded
+	 * @param count number of acknowledgements, at most MAX_ACKS
+	 * @param streamIds stream of each acknowledged packet
+	 * @param seqs sequence number of each acknowledged packet
+	 */
+	void attachAcks(int count, int[] streamIds, int[] seqs)
+	{
+		if(count == 0)
+		{
+			return;
+		}
+
+		flags |= ACKS;
+		ackCount = count;
+		ackStreamIds = streamIds;
+		ackSeqs = seqs;
+	}
+
+	/**
+	 * Number of bytes an acknowledgement block of count entries adds to a datagram
+	 * @param count number of acknowledgements
+	 * @return block length
+	 */
+	static int ackBlockLength(int count)
+	{
+		return (count == 0) ? 0 : 1 + count * ACK_SIZE;
+	}
+
+	/**
+	 * Splits a message into the payloads of the packets that carry it
+	 * @param message message to split
+	 * @param flags flags every fragment is sent with
+	 * @param fragments list to add the payload of each fragment to, as views of message
+	 * @param fragmentFlags list to add the flags of each fragment to
+	 */
+	static void fragment(byte[] message, byte flags, List<ByteBuffer> fragments, List<Byte> fragmentFlags)
+	{
+		int offset = 0;
+
+		do
+		{
+			int end = Math.min(offset + MAX_FRAGMENT_SIZE, message.length);
+			byte fragmentFlag = flags;
+
+			if(offset > 0)
+			{
+				fragmentFlag |= CONTINUATION;
+			}
+			if(end < message.length)
+			{
+				fragmentFlag |= MORE_FRAGMENTS;
+			}
+
+			fragments.add(ByteBuffer.wrap(message, offset, end - offset).slice());
+			fragmentFlags.add(fragmentFlag);
+			offset = end;
+		}
+		while(offset < message.length);
+	}
+
+	/**
+	 * Creates an empty bundle for small messages to be added to
+	 * @return heap buffer the size of a full fragment, holding nothing yet
+	 */
+	static ByteBuffer newBundle()
+	{
+		ByteBuffer bundle = ByteBuffer.allocate(MAX_FRAGMENT_SIZE);
+		bundle.limit(0);
+		return bundle;
+	}
+
+	/**
+	 * Appends a message to a bundle that has not been sent yet
+	 * @param bundle bundle holding the messages from position 0 to its limit
+	 * @param message message of at most MAX_BUNDLED_SIZE bytes
+	 * @param flags flags to deliver the message with
+	 * @param requestId request id to deliver the message with
+	 * @return false if the bundle has no room left for the message
+	 */
+	static boolean addToBundle(ByteBuffer bundle, byte[] message, byte flags, int requestId)
+	{
+		int used = bundle.limit();
+
+		if(bundle.capacity() - used < BUNDLE_HEADER_SIZE + message.length)
+		{
+			return false;
+		}
+
+		bundle.limit(used + BUNDLE_HEADER_SIZE + message.length);
+		bundle.position(used);
+		bundle.put(flags);
+		bundle.putInt(requestId);
+		bundle.putShort((short)message.length);
+		bundle.put(message);
+		bundle.position(0);
+
+		return true;
+	}
+
+	/**
+	 * Returns the only message in a bundle, so it can be sent as a packet of its own
+	 * @param bundle bundle about to be sent
+	 * @return view of the message, or null if the bundle holds more than one
+	 */
+	static ByteBuffer soleMessage(ByteBuffer bundle)
+	{
+		int length = bundle.getShort(1 + 4) & 0xFFFF;
+
+		if(BUNDLE_HEADER_SIZE + length != bundle.limit())
+		{
+			return null;
+		}
+
+		ByteBuffer message = bundle.duplicate();
+		message.position(BUNDLE_HEADER_SIZE);
+		return message.slice();
+	}
+
+	/**
+	 * Splits a received bundle into its messages, releasing the bundle.  The
+	 * messages are small, so each is copied out to a heap buffer of its own.
+	 * @param bundle packet flagged BUNDLE
+	 * @param messages list to add a packet for each message to, in order
+	 */
+	static void unbundle(Packet bundle, List<Packet> messages)
+	{
+		ByteBuffer payload = bundle.payload;
+
+		while(payload.remaining() >= BUNDLE_HEADER_SIZE)
+		{
+			byte flags = payload.get();
+			int requestId = payload.getInt();
+			int length = payload.getShort() & 0xFFFF;
+
+			if(length > payload.remaining())
+			{
+				break;
+			}
+
+			ByteBuffer message = ByteBuffer.allocate(length);
+			payload.get(message.array());
+
+			messages.add(new Packet(bundle.type, flags, bundle.streamId, bundle.seq, bundle.floor,
+				requestId, message, bundle.integrity));
+		}
+
+		bundle.release();
+	}
+
+	/**
+	 * Restores a message that was compressed, releasing the packet it arrived in
+	 * @param compressed packet flagged COMPRESSED, holding the whole message
+	 * @return packet holding the original message, or null if it could not be
+	 * inflated
+	 */
+	static Packet inflate(Packet compressed)
+	{
+		ByteBuffer message = Compression.inflate(compressed.payload);
+		compressed.release();
+
+		if(message == null)
+		{
+			return null;
+		}
+
+		return new Packet(compressed.type, (byte)(compressed.flags & ~COMPRESSED), compressed.streamId,
+			compressed.seq, compressed.floor, compressed.requestId, message, compressed.integrity);
+	}
+
+	/**
+	 * Joins the fragments of a message back into a single packet, releasing the
+	 * fragments
+	 * @param fragments packets carrying the message, in order
+	 * @return packet holding the whole message, flagged like the last fragment
+	 */
+	static Packet join(List<Packet> fragments)
+	{
+		int length = 0;
+		for(Packet fragment : fragments)
+		{
+			length += fragment.payload.remaining();
+		}
+
+		ByteBuffer message = ByteBuffer.allocate(length);
+		for(Packet fragment : fragments)
+		{
+			message.put(fragment.payload);
+			fragment.release();
+		}
+		message.flip();
+
+		Packet last = fragments.get(fragments.size() - 1);
+		return new Packet(last.type, (byte)(last.flags & ~(MORE_FRAGMENTS | CONTINUATION)), last.streamId,
+			last.seq, last.floor, last.requestId, message, last.integrity);
+	}
+
+	/**
+	 * Hands the datagram the payload is a view of back to the pool.  The payload
+	 * must not be touched afterwards.  Does nothing for packets that were not
+	 * received or have already been released.
+	 */
+	void release()
+	{
+		if(datagram != null)
+		{
+			BufferPool.getDefault().release(datagram);
+			datagram = null;
+			payload = null;
+		}
+	}
+
+	/**
+	 * Moves the payload off the pooled datagram, for callers that keep it around
+	 * with no way of knowing when they are done with it
+	 * @return flipped heap buffer holding the payload
+	 */
+	ByteBuffer detachPayload()
+	{
+		if(datagram == null)
+		{
+			return payload;
+		}
+
+		ByteBuffer detached = ByteBuffer.allocate(payload.remaining());
+		detached.put(payload);
+		detached.flip();
+		release();
+
+		return detached;
+	}
+
+	/**
+	 * Checks a flag on the packet
+	 * @param flag flag to check
+	 * @return true if the flag is set
+	 */
+	boolean is(byte flag)
+	{
+		return (flags & flag) != 0;
+	}
+
+	/**
+	 * Builds the datagram for this packet in a pooled buffer, which the caller
+	 * should hand back to BufferPool.getDefault() once it has been sent
+	 * @return flipped buffer holding the datagram
+	 */
+	ByteBuffer encode()
+	{
+		int payloadLength = (payload == null) ? 0 : payload.remaining();
+		int length = HEADER_SIZE + ackBlockLength(ackCount) + payloadLength + integrity.getLength();
+		ByteBuffer packet = (length <= BufferPool.BUFFER_SIZE) ? BufferPool.getDefault().acquire() : ByteBuffer.allocate(length);
+
+		packet.order(ByteOrder.BIG_ENDIAN);
+		packet.put(type);
+		packet.put((byte)(flags | integrity.getFlag()));
+		packet.putInt(streamId);
+		packet.putInt(seq);
+		packet.putInt(floor);
+		packet.putInt(requestId);
+
+		if(is(ACKS))
+		{
+			packet.put((byte)ackCount);
+
+			for(int a = 0; a < ackCount; a++)
+			{
+				packet.putInt(ackStreamIds[a]);
+				packet.putInt(ackSeqs[a]);
+			}
+		}
+
+		if(payload != null)
+		{
+			packet.put(payload.duplicate());
+		}
+
+		integrity.sign(packet);
+		packet.flip();
+
+		return packet;
+	}
+
+	/**
+	 * Parses a received datagram.  If the datagram is valid the packet takes it over
+	 * and hands it back to the pool on release(); otherwise it is left to the caller.
+	 * @param packet flipped pooled buffer holding the datagram
+	 * @return parsed packet, or null if the datagram is truncated or corrupt
+	 */
+	static Packet decode(ByteBuffer packet)
+	{
+		if(packet.remaining() < HEADER_SIZE)
+		{
+			return null;
+		}
+
+		//The flags are read before the trailer is checked to learn which check applies
+		IntegrityMode integrity = IntegrityMode.fromFlags(packet.get(packet.position() + 1));
+
+		if(packet.remaining() < HEADER_SIZE + integrity.getLength() || !integrity.verify(packet))
+		{
+			return null;
+		}
+
+		packet.order(ByteOrder.BIG_ENDIAN);
+
+		Packet decoded = new Packet();
+		decoded.type = packet.get();
+		decoded.flags = (byte)(packet.get() & ~IntegrityMode.FLAG_MASK);
+		decoded.streamId = packet.getInt();
+		decoded.seq = packet.getInt();
+		decoded.floor = packet.getInt();
+		decoded.requestId = packet.getInt();
+		packet.limit(packet.limit() - integrity.getLength());
+
+		if(decoded.is(ACKS))
+		{
+			int count = (packet.remaining() < 1) ? -1 : packet.get() & 0xFF;
+
+			if(count < 1 || count > MAX_ACKS || packet.remaining() < count * ACK_SIZE)
+			{
+				return null;
+			}
+
+			decoded.ackCount = count;
+			decoded.ackStreamIds = new int[count];
+			decoded.ackSeqs = new int[count];
+
+			for(int a = 0; a < count; a++)
+			{
+				decoded.ackStreamIds[a] = packet.getInt();
+				decoded.ackSeqs[a] = packet.getInt();
+			}
+		}
+
+		decoded.payload = packet.slice();
+		decoded.integrity = integrity;
+		decoded.datagram = packet;
+
+		return decoded;
+	}
+}
@@ -0,0 +1,270 @@
+package srudp;
+
+import java.net.*;
+import java.util.*;
+
+/**
+ * Smoothed round trip time estimates for a single remote address, in the style of
+ * RFC 6298.  Two estimates are kept: how long a packet takes to be acknowledged,
+ * which sets the retransmission timeout, and how long the remote end takes to
+ * answer a request once it has it, which sets how long to wait for replies.  Both
+ * back off exponentially while timeouts keep happening and recover on the next
+ * good sample.
+ *
+ * Estimators are shared by every socket talking to the same address and can be
+ * looked up through getEstimators() for monitoring.
+ */
+public class RTTEstimator
+{
+	private static final int MAX_ESTIMATORS = 4096;
+
+	private static Map<InetSocketAddress, RTTEstimator> estimators =
+		new LinkedHashMap<InetSocketAddress, RTTEstimator>(16, 0.75f, true)
+		{
+			protected boolean removeEldestEntry(Map.Entry<InetSocketAddress, RTTEstimator> eldest)
+			{
+				return size() > MAX_ESTIMATORS;
+			}
+		};
+
+	private final double INITIAL_RETRANSMIT_TIMEOUT = 500;	//milliseconds
+	private final double MIN_RETRANSMIT_TIMEOUT = 50;		//milliseconds
+	private final double MAX_RETRANSMIT_TIMEOUT = 1000;		//milliseconds
+	private final double INITIAL_REPLY_TIMEOUT = 1500;		//milliseconds
+	private final double MIN_REPLY_TIMEOUT = 100;			//milliseconds
+	private final double MAX_REPLY_TIMEOUT = 3000;			//milliseconds
+	private final int MAX_BACKOFF = 8;
+
+	private InetSocketAddress sockAddr;
+	private Smoother packetRTT;
+	private Smoother replyRTT;
+	private int retransmitBackoff;
+	private int replyBackoff;
+	private long retransmitTimeouts;
+	private long replyTimeouts;
+
+	/**
+	 * Running SRTT/RTTVAR pair
+	 */
+	private static class Smoother
+	{
+		private final double ALPHA = 1.0 / 8;
+		private final double BETA = 1.0 / 4;
+
+		double smoothed;
+		double variance;
+		long samples;
+
+		void add(double sample)
+		{
+			if(samples == 0)
+			{
+				smoothed = sample;
+				variance = sample / 2;
+			}
+			else
+			{
+				variance = (1 - BETA) * variance + BETA * Math.abs(smoothed - sample);
+				smoothed = (1 - ALPHA) * smoothed + ALPHA * sample;
+			}
+
+			samples++;
+		}
+
+		double timeout(double initial, double min, double max, int backoff)
+		{
+			double timeout = (samples == 0) ? initial : smoothed + 4 * variance;
+			return Math.min(Math.max(timeout, min) * backoff, max);
+		}
+	}
+
+	/**
+	 * Returns the estimator for a remote address, creating it if needed
+	 * @param sockAddr remote address
+	 * @return estimator--never null
+	 */
+	public static RTTEstimator forAddress(InetSocketAddress sockAddr)
+	{
+		synchronized(estimators)
+		{
+			RTTEstimator estimator = estimators.get(sockAddr);
+
+			if(estimator == null)
+			{
+				estimator = new RTTEstimator(sockAddr);
+				estimators.put(sockAddr, estimator);
+			}
+
+			return estimator;
+		}
+	}
+
+	/**
+	 * Returns the estimator for a remote address without creating one
+	 * @param sockAddr remote address
+	 * @return estimator, or null if none is kept for the address
+	 */
+	static RTTEstimator find(InetSocketAddress sockAddr)
+	{
+		synchronized(estimators)
+		{
+			return estimators.get(sockAddr);
+		}
+	}
+
+	/**
+	 * Returns every estimator currently kept, for monitoring
+	 * @return copy of the estimators keyed by remote address
+	 */
+	public static Map<InetSocketAddress, RTTEstimator> getEstimators()
+	{
+		synchronized(estimators)
+		{
+			return new HashMap<InetSocketAddress, RTTEstimator>(estimators);
+		}
+	}
+
+	private RTTEstimator(InetSocketAddress sockAddr)
+	{
+		this.sockAddr = sockAddr;
+		packetRTT = new Smoother();
+		replyRTT = new Smoother();
+		retransmitBackoff = 1;
+		replyBackoff = 1;
+		retransmitTimeouts = 0;
+		replyTimeouts = 0;
+	}
+
+	/**
+	 * Records how long a packet that was only sent once took to be acknowledged
+	 * @param rtt round trip time in milliseconds
+	 */
+	public synchronized void addPacketSample(double rtt)
+	{
+		packetRTT.add(rtt);
+		retransmitBackoff = 1;
+	}
+
+	/**
+	 * Records how long the remote end took to reply after receiving a request
+	 * @param rtt time in milliseconds
+	 */
+	public synchronized void addReplySample(double rtt)
+	{
+		replyRTT.add(rtt);
+		replyBackoff = 1;
+	}
+
+	/**
+	 * Doubles the retransmission timeout after a packet went unacknowledged
+	 */
+	public synchronized void backoffRetransmit()
+	{
+		retransmitBackoff = Math.min(retransmitBackoff * 2, MAX_BACKOFF);
+		retransmitTimeouts++;
+	}
+
+	/**
+	 * Doubles the reply timeout after a request went unanswered
+	 */
+	public synchronized void backoffReply()
+	{
+		replyBackoff = Math.min(replyBackoff * 2, MAX_BACKOFF);
+		replyTimeouts++;
+	}
+
+	/**
+	 * How long to wait for an acknowledgement before retransmitting
+	 * @return timeout in milliseconds
+	 */
+	public synchronized long getRetransmitTimeout()
+	{
+		return (long)Math.ceil(packetRTT.timeout(INITIAL_RETRANSMIT_TIMEOUT, MIN_RETRANSMIT_TIMEOUT, MAX_RETRANSMIT_TIMEOUT, retransmitBackoff));
+	}
+
+	/**
+	 * How long to wait for the reply to a request that has been delivered
+	 * @return timeout in milliseconds
+	 */
+	public synchronized long getReplyTimeout()
+	{
+		return (long)Math.ceil(replyRTT.timeout(INITIAL_REPLY_TIMEOUT, MIN_REPLY_TIMEOUT, MAX_REPLY_TIMEOUT, replyBackoff));
+	}
+
+	public InetSocketAddress getSockAddr()
+	{
+		return sockAddr;
+	}
+
+	/**
+	 * Smoothed time for a packet to be acknowledged
+	 * @return SRTT in milliseconds, or 0 if nothing has been measured
+	 */
+	public synchronized double getSmoothedRTT()
+	{
+		return packetRTT.smoothed;
+	}
+
+	/**
+	 * Variation in the time for a packet to be acknowledged
+	 * @return RTTVAR in milliseconds, or 0 if nothing has been measured
+	 */
+	public synchronized double getRTTVariance()
+	{
+		return packetRTT.variance;
+	}
+
+	/**
+	 * Smoothed time for the remote end to reply to a request
+	 * @return smoothed reply time in milliseconds, or 0 if nothing has been measured
+	 */
+	public synchronized double getSmoothedReplyTime()
+	{
+		return replyRTT.smoothed;
+	}
+
+	/**
+	 * Variation in the time for the remote end to reply to a request
+	 * @return reply time variation in milliseconds, or 0 if nothing has been measured
+	 */
+	public synchronized double getReplyTimeVariance()
+	{
+		return replyRTT.variance;
+	}
+
+	/**
+	 * Current retransmission backoff multiplier
+	 * @return 1 if no timeouts happened since the last good sample
+	 */
+	public synchronized int getRetransmitBackoff()
+	{
+		return retransmitBackoff;
+	}
+
+	/**
+	 * Number of times a packet to this address went unacknowledged
+	 * @return retransmission timeout count
+	 */
+	public synchronized long getRetransmitTimeouts()
+	{
+		return retransmitTimeouts;
+	}
+
+	/**
+	 * Number of times a request to this address went unanswered
+	 * @return reply timeout count
+	 */
+	public synchronized long getReplyTimeouts()
+	{
+		return replyTimeouts;
+	}
+
+	public synchronized String toString()
+	{
+		return sockAddr + " srtt=" + String.format("%.2f", packetRTT.smoothed) +
+			"ms rttvar=" + String.format("%.2f", packetRTT.variance) +
+			"ms rto=" + getRetransmitTimeout() +
+			"ms reply=" + String.format("%.2f", replyRTT.smoothed) +
+			"ms replyTimeout=" + getReplyTimeout() + "ms";
+	}
+}
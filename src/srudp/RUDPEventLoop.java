@@ -0,0 +1,198 @@
+package srudp;
+
+import java.io.*;
+import java.nio.channels.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * The single I/O thread behind every RUDPSocket in the process. Sockets hand it
+ * work as tasks, it reads every socket's endpoint when the selector or the
+ * endpoint itself says datagrams have arrived, and it runs the retransmission
+ * and reply timers of every socket with something in flight, along with sending
+ * the acknowledgements the AckQueue holds back. All of a socket's send and
+ * receive state is only ever touched from this thread.
+ */
+class RUDPEventLoop implements Runnable
+{
+	private static RUDPEventLoop defaultLoop = null;
+
+	private Selector select;
+	private ConcurrentLinkedQueue<Runnable> tasks;
+	private Set<RUDPSocket> active;
+	private ConcurrentLinkedQueue<RUDPSocket> readable;
+	private Thread thread;
+
+	/**
+	 * Returns the loop shared by every socket, starting it the first time
+	 * @return event loop
+	 * @throws IOException if the selector could not be opened
+	 */
+	static synchronized RUDPEventLoop getDefault() throws IOException
+	{
+		if(defaultLoop == null)
+		{
+			defaultLoop = new RUDPEventLoop();
+		}
+
+		return defaultLoop;
+	}
+
+	private RUDPEventLoop() throws IOException
+	{
+		select = Selector.open();
+		tasks = new ConcurrentLinkedQueue<Runnable>();
+		active = new LinkedHashSet<RUDPSocket>();
+		readable = new ConcurrentLinkedQueue<RUDPSocket>();
+
+		thread = new Thread(this, "srudp I/O");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Whether the calling thread is the I/O thread
+	 * @return true if called from the loop
+	 */
+	boolean inLoop()
+	{
+		return Thread.currentThread() == thread;
+	}
+
+	/**
+	 * Queues a task to run on the I/O thread
+	 * @param task task to run
+	 */
+	void execute(Runnable task)
+	{
+		tasks.add(task);
+
+		if(!inLoop())
+		{
+			select.wakeup();
+		}
+	}
+
+	/**
+	 * Has the loop look at its timers again, in case something was queued that
+	 * falls due before it would otherwise wake up
+	 */
+	void wakeup()
+	{
+		if(!inLoop())
+		{
+			select.wakeup();
+		}
+	}
+
+	/**
+	 * Starts reading a socket's endpoint.  Only called from the I/O thread.
+	 * Closing the endpoint is enough to stop reading it.
+	 * @param endpoint endpoint to read
+	 * @param socket socket the endpoint belongs to
+	 * @throws ClosedChannelException if the endpoint was closed
+	 */
+	void register(Endpoint endpoint, final RUDPSocket socket) throws ClosedChannelException
+	{
+		SelectableChannel channel = endpoint.getChannel();
+
+		if(channel != null)
+		{
+			channel.register(select, SelectionKey.OP_READ, socket);
+			return;
+		}
+
+		endpoint.setListener(new Runnable()
+		{
+			public void run()
+			{
+				readable.add(socket);
+				wakeup();
+			}
+		});
+	}
+
+	/**
+	 * Has the loop poll a socket's timers until it has nothing left in flight.
+	 * Only called from a task.
+	 * @param socket socket with something in flight
+	 */
+	void activate(RUDPSocket socket)
+	{
+		active.add(socket);
+	}
+
+	public void run()
+	{
+		while(true)
+		{
+			try
+			{
+				Runnable task;
+				while((task = tasks.poll()) != null)
+				{
+					try
+					{
+						task.run();
+					}
+					catch (Exception e)
+					{
+						System.out.println("Exception: " + e);
+						e.printStackTrace();
+					}
+				}
+
+				//Running every socket's timers, which also tells us how long we may sleep
+				long now = System.nanoTime();
+				long wake = AckQueue.getDefault().flush(now);
+				Iterator<RUDPSocket> it = active.iterator();
+				while(it.hasNext())
+				{
+					long deadline = it.next().poll(now);
+
+					if(deadline == Long.MAX_VALUE)
+					{
+						it.remove();
+					}
+					else
+					{
+						wake = Math.min(wake, deadline);
+					}
+				}
+
+				if(!tasks.isEmpty() || !readable.isEmpty())
+				{
+					select.selectNow();
+				}
+				else if(wake == Long.MAX_VALUE)
+				{
+					select.select();
+				}
+				else
+				{
+					select.select(Math.max((wake - now + 999999) / 1000000L, 1));
+				}
+
+				for(SelectionKey key : select.selectedKeys())
+				{
+					if(key.isValid())
+					{
+						((RUDPSocket)key.attachment()).readAvailable();
+					}
+				}
+				select.selectedKeys().clear();
+
+				RUDPSocket socket;
+				while((socket = readable.poll()) != null)
+				{
+					socket.readAvailable();
+				}
+			}
+			catch (Exception e)
+			{
+				System.out.println("Exception: " + e);
+				e.printStackTrace();
+			}
+		}
+	}
+}
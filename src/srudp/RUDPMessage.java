@@ -0,0 +1,48 @@
+package srudp;
+
+import java.nio.*;
+
+/**
+ * A whole message received by RUDPServerSocket, along with a socket describing
+ * who sent it.  The payload of a message that fit in one datagram is a view of
+ * the pooled buffer it arrived in, so release() should be called once the payload
+ * is no longer needed.
+ */
+public class RUDPMessage
+{
+	private RUDPSocket sender;
+	private Packet packet;
+
+	RUDPMessage(RUDPSocket sender, Packet packet)
+	{
+		this.sender = sender;
+		this.packet = packet;
+	}
+
+	/**
+	 * Socket describing the sender of the message
+	 * @return sender
+	 */
+	public RUDPSocket getSender()
+	{
+		return sender;
+	}
+
+	/**
+	 * Contents of the message, sized to fit it exactly
+	 * @return flipped buffer holding the message
+	 */
+	public ByteBuffer getPayload()
+	{
+		return packet.payload;
+	}
+
+	/**
+	 * Hands the buffer holding the message back to the pool.  Neither the payload
+	 * nor anything read from it without copying may be used afterwards.
+	 */
+	public void release()
+	{
+		packet.release();
+	}
+}
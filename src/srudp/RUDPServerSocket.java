@@ -3,51 +3,317 @@ package srudp;
 import java.net.*;
 import java.nio.*;
 import java.nio.channels.*;
-import java.security.*;
 import java.util.*;
+import java.util.concurrent.*;
 
+/**
+ * Reliable UDP socket that accepts messages from any number of senders.
+ *
+ * With a single reader, whichever thread calls receive() reads, checks and
+ * acknowledges datagrams itself. Acknowledgements go through the AckQueue, so
+ * they can ride on replies sent back to the same address. With several, one
+ * thread reads the channel and hands every datagram to a shard picked by the
+ * sender's address; each shard checks, acknowledges and reassembles datagrams
+ * on its own thread and queues the finished messages for receive(). A sender
+ * always lands on the same shard, so its messages are still handed out in the
+ * order they were sent.
+ */
 public class RUDPServerSocket
 {
-	private DatagramChannel sock;
+	//Datagrams waiting for a busy shard before further ones are dropped
+	private final int SHARD_BACKLOG = 4096;
+
+	//Finished messages waiting for receive() before shards stop to wait
+	private final int MESSAGE_BACKLOG = 4096;
+
+	private Transport transport;
+	private Endpoint sock;
+	private Receiver receiver;
+	private Shard[] shards;
+	private BlockingQueue<RUDPMessage> messages;
+
+	/**
+	 * A datagram waiting for its shard
+	 */
+	private static class Datagram
+	{
+		InetSocketAddress source;
+		ByteBuffer packet;
+
+		Datagram(InetSocketAddress source, ByteBuffer packet)
+		{
+			this.source = source;
+			this.packet = packet;
+		}
+	}
+
+	/**
+	 * Receive state and thread for the senders hashed to one shard
+	 */
+	private class Shard implements Runnable
+	{
+		Receiver receiver = new Receiver();
+		BlockingQueue<Datagram> datagrams = new ArrayBlockingQueue<Datagram>(SHARD_BACKLOG);
+
+		public void run()
+		{
+			while(sock.isOpen())
+			{
+				try
+				{
+					Datagram datagram = datagrams.poll(1, TimeUnit.SECONDS);
+
+					if(datagram == null)
+					{
+						continue;
+					}
+
+					if(!process(receiver, datagram.packet, datagram.source))
+					{
+						BufferPool.getDefault().release(datagram.packet);
+					}
+
+					Receiver.Delivery delivery;
+					while((delivery = receiver.poll()) != null)
+					{
+						messages.put(toMessage(delivery));
+					}
+				}
+				catch (Exception e)
+				{
+					System.out.println("Exception: " + e);
+					e.printStackTrace();
+				}
+			}
+		}
+	}
 
 	public RUDPServerSocket(int port) throws Exception
 	{
-		sock = DatagramChannel.open();
-		sock.configureBlocking(true);
-		sock.socket().bind(new InetSocketAddress(port));
+		this(port, 1);
 	}
 
+	public RUDPServerSocket(int port, int readers) throws Exception
+	{
+		this(port, readers, RUDPSocket.getDefaultTransport());
+	}
+
+	/**
+	 * Creates a socket bound to port
+	 * @param port port to listen on
+	 * @param readers number of threads checking and reassembling datagrams; 1 does
+	 * all the work on the thread calling receive()
+	 * @param transport transport to listen on, which the sockets describing senders
+	 * use as well
+	 * @throws Exception on network I/O error
+	 */
+	public RUDPServerSocket(int port, int readers, Transport transport) throws Exception
+	{
+		this.transport = transport;
+		sock = transport.open(port, true);
+
+		if(readers <= 1)
+		{
+			receiver = new Receiver();
+			return;
+		}
+
+		messages = new ArrayBlockingQueue<RUDPMessage>(MESSAGE_BACKLOG);
+		shards = new Shard[readers];
+
+		for(int s = 0; s < readers; s++)
+		{
+			shards[s] = new Shard();
+
+			Thread thread = new Thread(shards[s], "RUDPServerSocket " + port + " shard " + s);
+			thread.setDaemon(true);
+			thread.start();
+		}
+
+		Thread dispatcher = new Thread(new Runnable()
+		{
+			public void run()
+			{
+				dispatch();
+			}
+		}, "RUDPServerSocket " + port + " dispatcher");
+		dispatcher.setDaemon(true);
+		dispatcher.start();
+	}
+
+	/**
+	 * Stops listening.  Shard threads finish within a second of running out of
+	 * queued datagrams.
+	 * @throws Exception on network I/O error
+	 */
+	public void close() throws Exception
+	{
+		sock.close();
+	}
+
+	/**
+	 * Waits for the next message and copies it into buffer
+	 * @param buffer buffer to copy the message into, flipped on return
+	 * @return socket describing the sender of the message
+	 * @throws BufferOverflowException if the message does not fit in buffer
+	 * @throws Exception on network I/O error
+	 */
 	public RUDPSocket read(ByteBuffer buffer) throws Exception
 	{
-		ByteBuffer packet = ByteBuffer.allocate(64*1024);
+		RUDPMessage message = receive();
+
+		try
+		{
+			buffer.put(message.getPayload());
+			buffer.flip();
+		}
+		finally
+		{
+			message.release();
+		}
+
+		return message.getSender();
+	}
+
+	/**
+	 * Waits for the next message, however many datagrams it took to carry.  The
+	 * message is not copied out of the buffer it arrived in, so it should be
+	 * released once handled.
+	 * @return message along with who sent it
+	 * @throws Exception on network I/O error
+	 */
+	public RUDPMessage receive() throws Exception
+	{
+		if(shards != null)
+		{
+			return messages.take();
+		}
+
+		BufferPool pool = BufferPool.getDefault();
+		ByteBuffer packet = null;
 
 		while(true)
 		{
+			//Handing out messages that were released in order by an earlier packet
+			Receiver.Delivery delivery = receiver.poll();
+			if(delivery != null)
+			{
+				if(packet != null)
+				{
+					pool.release(packet);
+				}
+
+				return toMessage(delivery);
+			}
+
+			if(packet == null)
+			{
+				packet = pool.acquire();
+			}
+
 			packet.clear();
-			InetSocketAddress returnAddr = (InetSocketAddress)sock.receive(packet);
+			InetSocketAddress returnAddr = sock.receive(packet);
 			packet.flip();
 
-			if(packet.remaining() < 20)
+			//The datagram belongs to the decoded packet once processed
+			if(process(receiver, packet, returnAddr))
 			{
-				continue;
+				packet = null;
 			}
+		}
+	}
 
-			byte[] payload = new byte[packet.remaining() - 20];
-			packet.get(payload);
-			byte[] hash = new byte[20];
-			packet.get(hash);
-			byte[] calcHash = MessageDigest.getInstance("SHA-1").digest(payload);
+	/**
+	 * Reads the channel and hands each datagram to the shard of its sender, for as
+	 * long as the socket is open
+	 */
+	private void dispatch()
+	{
+		BufferPool pool = BufferPool.getDefault();
 
-			if(Arrays.equals(hash, calcHash))
+		while(sock.isOpen())
+		{
+			ByteBuffer packet = pool.acquire();
+
+			try
 			{
-				ByteBuffer response = ByteBuffer.wrap(hash);
-				sock.send(response, returnAddr);
+				InetSocketAddress returnAddr = sock.receive(packet);
+				packet.flip();
 
-				buffer.put(payload);
-				buffer.flip();
+				Shard shard = shards[(returnAddr.hashCode() & Integer.MAX_VALUE) % shards.length];
 
-				return new RUDPSocket(returnAddr.getAddress(), returnAddr.getPort());
+				//A shard that cannot keep up loses the datagram, which the sender will retransmit
+				if(!shard.datagrams.offer(new Datagram(returnAddr, packet)))
+				{
+					pool.release(packet);
+				}
+			}
+			catch (ClosedChannelException e)
+			{
+				pool.release(packet);
+			}
+			catch (Exception e)
+			{
+				pool.release(packet);
+				System.out.println("Exception: " + e);
+				e.printStackTrace();
 			}
 		}
 	}
+
+	/**
+	 * Checks a received datagram, offers it to receiver and queues its
+	 * acknowledgement
+	 * @param receiver receive state the sender belongs to
+	 * @param packet flipped pooled buffer holding the datagram
+	 * @param returnAddr address the datagram came from
+	 * @return true if the datagram was taken over, false if it was corrupt and can
+	 * be reused
+	 * @throws Exception on network I/O error
+	 */
+	private boolean process(Receiver receiver, ByteBuffer packet, InetSocketAddress returnAddr) throws Exception
+	{
+		RemoteMetrics source = RemoteMetrics.forAddress(returnAddr);
+		source.datagramReceived();
+
+		Packet received = Packet.decode(packet);
+
+		if(received == null)
+		{
+			source.checksumFailed();
+			return false;
+		}
+
+		if(received.type != Packet.DATA)
+		{
+			received.release();
+			return true;
+		}
+
+		if(receiver.offer(returnAddr, received))
+		{
+			AckQueue.getDefault().add(sock, returnAddr, received);
+		}
+
+		return true;
+	}
+
+	/**
+	 * Wraps a delivered packet up for the application
+	 * @param delivery packet and its sender
+	 * @return message
+	 * @throws Exception on network I/O error
+	 */
+	private RUDPMessage toMessage(Receiver.Delivery delivery) throws Exception
+	{
+		RUDPSocket sender = new RUDPSocket(delivery.source.getAddress(), delivery.source.getPort(), transport);
+		sender.setIntegrityMode(delivery.packet.integrity);
+
+		if(delivery.packet.is(Packet.REQUEST))
+		{
+			sender.setRequestId(delivery.packet.requestId);
+		}
+
+		return new RUDPMessage(sender, delivery.packet);
+	}
 }
@@ -0,0 +1,158 @@
+package srudp;
+
+import java.net.*;
+import java.nio.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * A long lived connection to a single remote address.  Sessions are handed out by
+ * RUDPSessionManager and reused for every message exchanged with that address, so
+ * the channel underneath is only set up once.  Any number of threads may use a
+ * session at the same time, and every operation also has a non-blocking form.
+ */
+public class RUDPSession
+{
+	private RUDPSocket sock;
+	private int users;
+	private long lastUsed;
+
+	RUDPSession(InetSocketAddress sockAddr) throws Exception
+	{
+		sock = new RUDPSocket(sockAddr.getAddress(), sockAddr.getPort());
+		users = 0;
+		lastUsed = System.currentTimeMillis();
+	}
+
+	/**
+	 * Address of the remote end of the session
+	 * @return remote address
+	 */
+	public InetSocketAddress getSockAddr()
+	{
+		return sock.getSockAddr();
+	}
+
+	/**
+	 * Socket the session is carried over
+	 * @return socket--never null
+	 */
+	public RUDPSocket getSocket()
+	{
+		return sock;
+	}
+
+	/**
+	 * Reliably sends a message over the session
+	 * @param payload message to send
+	 * @throws Exception if the message could not be delivered
+	 */
+	public void write(byte[] payload) throws Exception
+	{
+		sock.write(payload);
+	}
+
+	/**
+	 * Reliably sends a batch of messages over the session, in order
+	 * @param payloads messages to send
+	 * @throws Exception if any message could not be delivered
+	 */
+	public void write(List<byte[]> payloads) throws Exception
+	{
+		sock.write(payloads);
+	}
+
+	/**
+	 * Sends a request over the session and waits for the reply to it
+	 * @param request message to send
+	 * @return reply from the other end
+	 * @throws Exception if the request could not be delivered or no reply came back
+	 */
+	public ByteBuffer call(byte[] request) throws Exception
+	{
+		return sock.call(request);
+	}
+
+	/**
+	 * Reliably sends the reply to a request that came from the other end
+	 * @param requestId id of the request being answered
+	 * @param payload reply to send
+	 * @throws Exception if the reply could not be delivered
+	 */
+	public void reply(int requestId, byte[] payload) throws Exception
+	{
+		sock.reply(requestId, payload);
+	}
+
+	/**
+	 * Sends a message over the session without waiting
+	 * @param payload message to send
+	 * @return future completed once the message has been acknowledged
+	 */
+	public CompletableFuture<Void> writeAsync(byte[] payload)
+	{
+		return sock.writeAsync(payload);
+	}
+
+	/**
+	 * Sends a batch of messages over the session, in order, without waiting
+	 * @param payloads messages to send
+	 * @return future completed once every message has been acknowledged
+	 */
+	public CompletableFuture<Void> writeAsync(List<byte[]> payloads)
+	{
+		return sock.writeAsync(payloads);
+	}
+
+	/**
+	 * Sends a request over the session without waiting for the reply
+	 * @param request message to send
+	 * @return future completed with the reply from the other end
+	 */
+	public CompletableFuture<ByteBuffer> callAsync(byte[] request)
+	{
+		return sock.callAsync(request);
+	}
+
+	/**
+	 * Sends the reply to a request that came from the other end without waiting
+	 * @param requestId id of the request being answered
+	 * @param payload reply to send
+	 * @return future completed once the reply has been acknowledged
+	 */
+	public CompletableFuture<Void> replyAsync(int requestId, byte[] payload)
+	{
+		return sock.replyAsync(requestId, payload);
+	}
+
+	int getUsers()
+	{
+		return users;
+	}
+
+	void setUsers(int users)
+	{
+		this.users = users;
+	}
+
+	long getLastUsed()
+	{
+		return lastUsed;
+	}
+
+	void setLastUsed(long lastUsed)
+	{
+		this.lastUsed = lastUsed;
+	}
+
+	void close()
+	{
+		try
+		{
+			sock.close();
+		}
+		catch (Exception e)
+		{
+		}
+	}
+}
@@ -0,0 +1,139 @@
+package srudp;
+
+import java.net.*;
+import java.util.*;
+
+/**
+ * Keeps one long lived session per remote address so that repeated exchanges with
+ * the same node reuse a single socket instead of opening and closing one for every
+ * message.  Sessions nobody has used for a while are closed in the background.
+ */
+public class RUDPSessionManager
+{
+	private final int IDLE_TIMEOUT = 30*1000;			//milliseconds
+	private final int IDLE_CHECK_TIMER_DELAY = 5*1000;	//milliseconds
+
+	private static RUDPSessionManager defaultManager = null;
+
+	private Map<InetSocketAddress, RUDPSession> sessions;
+	private Timer idleTimer;
+
+	/**
+	 * Returns the manager shared by everything in this process
+	 * @return default manager--never null
+	 */
+	public static synchronized RUDPSessionManager getDefault()
+	{
+		if(defaultManager == null)
+		{
+			defaultManager = new RUDPSessionManager();
+		}
+
+		return defaultManager;
+	}
+
+	public RUDPSessionManager()
+	{
+		sessions = new HashMap<InetSocketAddress, RUDPSession>();
+
+		idleTimer = new Timer(true);
+		idleTimer.scheduleAtFixedRate(new TimerTask()
+		{
+			public void run()
+			{
+				closeIdleSessions();
+			}
+		}, IDLE_CHECK_TIMER_DELAY, IDLE_CHECK_TIMER_DELAY);
+	}
+
+	/**
+	 * Returns the session to sockAddr, creating it if there is none.  The session
+	 * stays open at least until the matching release().
+	 * @param sockAddr remote address
+	 * @return session to the address
+	 * @throws Exception if the session could not be created
+	 */
+	public RUDPSession acquire(InetSocketAddress sockAddr) throws Exception
+	{
+		synchronized(sessions)
+		{
+			RUDPSession session = sessions.get(sockAddr);
+
+			if(session == null)
+			{
+				session = new RUDPSession(sockAddr);
+				sessions.put(sockAddr, session);
+			}
+
+			session.setUsers(session.getUsers() + 1);
+
+			return session;
+		}
+	}
+
+	/**
+	 * Hands a session back after acquire()
+	 * @param session session to give back
+	 */
+	public void release(RUDPSession session)
+	{
+		synchronized(sessions)
+		{
+			session.setUsers(session.getUsers() - 1);
+			session.setLastUsed(System.currentTimeMillis());
+		}
+	}
+
+	/**
+	 * Number of sessions currently open
+	 * @return open session count
+	 */
+	public int getSessionCount()
+	{
+		synchronized(sessions)
+		{
+			return sessions.size();
+		}
+	}
+
+	/**
+	 * Closes every session and stops the idle timer
+	 */
+	public void close()
+	{
+		idleTimer.cancel();
+
+		synchronized(sessions)
+		{
+			for(RUDPSession session : sessions.values())
+			{
+				session.close();
+			}
+
+			sessions.clear();
+		}
+	}
+
+	/**
+	 * Closes sessions that nobody holds and that have not been used recently
+	 */
+	private void closeIdleSessions()
+	{
+		long now = System.currentTimeMillis();
+
+		synchronized(sessions)
+		{
+			Iterator<RUDPSession> it = sessions.values().iterator();
+			while(it.hasNext())
+			{
+				RUDPSession session = it.next();
+
+				if(session.getUsers() == 0 && now - session.getLastUsed() > IDLE_TIMEOUT)
+				{
+					session.close();
+					it.remove();
+				}
+			}
+		}
+	}
+}
@@ -3,153 +3,1235 @@ package srudp;
 import java.net.*;
 import java.nio.*;
 import java.nio.channels.*;
-import java.security.*;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.*;
 
+/**
+ * Reliable UDP socket for talking to a single remote address.  A socket may be
+ * shared by any number of threads: every write gets its own run of sequence
+ * numbers and every call its own request id.
+ *
+ * Every operation has a non-blocking form returning a CompletableFuture.  The work
+ * itself is done by the process wide RUDPEventLoop thread, which sends, reads,
+ * retransmits and times out on behalf of every socket, so nothing parks a thread
+ * while a message is in flight.  Callbacks attached to the futures run on that
+ * thread and must not block; the blocking forms simply wait on the future.
+ *
+ * Small messages are coalesced: any queued before the loop gets round to sending
+ * share a datagram, as do the messages of a batch such as write(List).
+ */
 public class RUDPSocket
 {
-	private DatagramChannel sock;
+	private final int MAX_TRANSMISSIONS = 3;
+
+	private static Random streamIdGenerator = new Random();
+
+	private static Transport defaultTransport = new UDPTransport();
+
+	private RUDPEventLoop loop;
+	private Transport transport;
+	private Endpoint sock;
 	private InetSocketAddress sockAddr;
-	private Selector select;
-	private boolean isReadTimedOut;
+	private RTTEstimator estimator;
+	private CongestionWindow congestion;
+	private volatile IntegrityMode integrity;
+	private volatile int compressionThreshold;
+	private int streamId;
+	private int nextSeq;
+	private int nextRequestId;
+	private Receiver receiver;
+	private TreeSet<Integer> unacked;
+	private LinkedList<Outgoing> sending;
+	private Outgoing bundling;
+	private ByteBuffer openBundle;
+	private int openBundleIndex;
+	private long lastAcked;
+	private Map<Integer, Call> calls;
+	private LinkedList<ByteBuffer> inbound;
+	private LinkedList<Read> reads;
+	private boolean closed;
+	private boolean request;
+	private int requestId;
+
+	/**
+	 * A batch of messages being sent, split into the packets that carry them
+	 */
+	private static class Outgoing
+	{
+		List<ByteBuffer> fragments;
+		List<Byte> fragmentFlags;
+		int requestId;
+		int[] seqs;
+		long[] sendTimes;
+		long[] firstSent;
+		int[] transmissions;
+		boolean[] acked;
+		boolean[] dropped;
+		int base;
+		int next;
+		CompletableFuture<Void> done;
+	}
+
+	/**
+	 * A request waiting for its reply.  The reply timer only starts once the request
+	 * has been delivered, and starts over whenever part of the reply arrives.
+	 */
+	private static class Call
+	{
+		CompletableFuture<ByteBuffer> reply;
+		long sentAt;
+		long deliveredAt = 0;
+		long deadline = Long.MAX_VALUE;
+
+		Call(CompletableFuture<ByteBuffer> reply)
+		{
+			this.reply = reply;
+			sentAt = System.nanoTime();
+		}
+	}
+
+	/**
+	 * A read waiting for a message
+	 */
+	private static class Read
+	{
+		CompletableFuture<ByteBuffer> message;
+		long deadline;
+
+		Read(CompletableFuture<ByteBuffer> message, long deadline)
+		{
+			this.message = message;
+			this.deadline = deadline;
+		}
+	}
 
 	public RUDPSocket(InetAddress IPAddr, int port) throws Exception
 	{
-		sock = DatagramChannel.open();
-		sock.configureBlocking(false);
+		this(IPAddr, port, getDefaultTransport());
+	}
+
+	/**
+	 * Creates a socket for talking to a remote address.  Nothing is opened until
+	 * the socket is first used.
+	 * @param IPAddr remote address
+	 * @param port remote port
+	 * @param transport transport to send through
+	 * @throws Exception on network I/O error
+	 */
+	public RUDPSocket(InetAddress IPAddr, int port, Transport transport) throws Exception
+	{
+		loop = null;
+		this.transport = transport;
+		sock = null;
 		sockAddr = new InetSocketAddress(IPAddr, port);
+		integrity = IntegrityMode.getDefault();
+		compressionThreshold = Compression.DEFAULT_THRESHOLD;
+
+		synchronized(streamIdGenerator)
+		{
+			streamId = streamIdGenerator.nextInt();
+		}
+		nextSeq = 0;
+		nextRequestId = 0;
+		receiver = new Receiver();
+
+		//Sequence numbers are ordered by distance so the set survives wrap around
+		unacked = new TreeSet<Integer>(new Comparator<Integer>()
+		{
+			public int compare(Integer a, Integer b)
+			{
+				return Integer.signum(a - b);
+			}
+		});
+		sending = new LinkedList<Outgoing>();
+		calls = new HashMap<Integer, Call>();
+		inbound = new LinkedList<ByteBuffer>();
+		reads = new LinkedList<Read>();
+		closed = false;
+		request = false;
+		lastAcked = System.nanoTime();
 	}
-	
+
 	public InetSocketAddress getSockAddr()
 	{
 		return sockAddr;
 	}
-	
+
+	/**
+	 * Transport new sockets send through unless given one.  Starts as UDPTransport.
+	 * @return default transport
+	 */
+	public static synchronized Transport getDefaultTransport()
+	{
+		return defaultTransport;
+	}
+
+	/**
+	 * Changes the transport new sockets send through, for instance to a
+	 * SimulatedNetwork
+	 * @param transport new default transport
+	 */
+	public static synchronized void setDefaultTransport(Transport transport)
+	{
+		defaultTransport = transport;
+	}
+
+	/**
+	 * Round trip time estimates for the remote address, shared with every other
+	 * socket talking to it
+	 * @return estimator--never null
+	 */
+	public RTTEstimator getRTTEstimator()
+	{
+		return RTTEstimator.forAddress(sockAddr);
+	}
+
+	/**
+	 * Traffic counters for the remote address, shared with every other socket
+	 * talking to it.  Looked up afresh on each call, since metrics evicted for
+	 * being idle stop being exported.
+	 * @return metrics--never null
+	 */
+	public RemoteMetrics getMetrics()
+	{
+		return RemoteMetrics.forAddress(sockAddr);
+	}
+
+	/**
+	 * How packets sent by this socket are protected.  Sockets handed out by
+	 * RUDPServerSocket.read() use the mode the message arrived with.
+	 * @return integrity mode
+	 */
+	public IntegrityMode getIntegrityMode()
+	{
+		return integrity;
+	}
+
+	/**
+	 * Changes how packets sent by this socket are protected.  The other end checks
+	 * whichever mode a packet names, so this only needs to be set on the sender.
+	 * @param integrity integrity mode
+	 */
+	public void setIntegrityMode(IntegrityMode integrity)
+	{
+		this.integrity = integrity;
+	}
+
+	/**
+	 * Smallest message this socket compresses before sending
+	 * @return threshold in bytes, or 0 if compression is off
+	 */
+	public int getCompressionThreshold()
+	{
+		return compressionThreshold;
+	}
+
+	/**
+	 * Changes the smallest message this socket compresses before sending.  The
+	 * other end inflates whatever arrives flagged as compressed, so this only needs
+	 * to be set on the sender.
+	 * @param compressionThreshold threshold in bytes, or 0 to turn compression off
+	 */
+	public void setCompressionThreshold(int compressionThreshold)
+	{
+		this.compressionThreshold = compressionThreshold;
+	}
+
+	/**
+	 * Whether the message this socket was handed out for by RUDPServerSocket.read()
+	 * is a request that expects a reply
+	 * @return true if reply() should be used to answer the message
+	 */
+	public boolean isRequest()
+	{
+		return request;
+	}
+
+	/**
+	 * Id of the request this socket was handed out for.  Only meaningful if
+	 * isRequest() is true.
+	 * @return request id
+	 */
+	public int getRequestId()
+	{
+		return requestId;
+	}
+
+	/**
+	 * Marks this socket as describing the sender of a request
+	 * @param requestId id of the request
+	 */
+	void setRequestId(int requestId)
+	{
+		this.request = true;
+		this.requestId = requestId;
+	}
+
+	/**
+	 * Closes the endpoint.  Anything still in flight fails.
+	 * @throws Exception on network I/O error
+	 */
 	public void close() throws Exception
 	{
-		sock.close();
+		RUDPEventLoop loop;
+
+		synchronized(this)
+		{
+			loop = this.loop;
+		}
+
+		//Sockets that were never used have nothing to close
+		if(loop == null)
+		{
+			return;
+		}
+
+		loop.execute(new Runnable()
+		{
+			public void run()
+			{
+				shutdown();
+			}
+		});
 	}
 
+	/**
+	 * Reliably sends a single message
+	 * @param payload message to send
+	 * @throws Exception if the message could not be delivered
+	 */
 	public void write(byte[] payload) throws Exception
 	{
-		byte[] hash = MessageDigest.getInstance("SHA-1").digest(payload);
-		ByteBuffer packet = ByteBuffer.allocate(payload.length + hash.length);
-		packet.put(payload);
-		packet.put(hash);
-		packet.flip();
+		await(writeAsync(payload));
+	}
+
+	/**
+	 * Reliably sends a batch of messages, keeping up to Packet.WINDOW_SIZE of them
+	 * in flight at once.  Lost packets are retransmitted individually and the
+	 * messages are delivered to the other end in the order given.  A packet that
+	 * runs out of retransmissions while the other end is acknowledging others only
+	 * costs the messages it carries; the rest of the batch carries on.
+	 * @param payloads messages to send
+	 * @throws UndeliveredException naming the messages that could not be delivered
+	 * @throws Exception if the other end stopped answering altogether
+	 */
+	public void write(List<byte[]> payloads) throws Exception
+	{
+		await(writeAsync(payloads));
+	}
+
+	/**
+	 * Sends a request and waits for the reply to it.  Any number of calls may be
+	 * outstanding on the same socket at once.
+	 * @param request message to send
+	 * @return reply from the other end
+	 * @throws Exception if the request could not be delivered or no reply came back
+	 */
+	public ByteBuffer call(byte[] request) throws Exception
+	{
+		return await(callAsync(request));
+	}
+
+	/**
+	 * Reliably sends the reply to a request
+	 * @param requestId id of the request being answered
+	 * @param payload reply to send
+	 * @throws Exception if the reply could not be delivered
+	 */
+	public void reply(int requestId, byte[] payload) throws Exception
+	{
+		await(replyAsync(requestId, payload));
+	}
+
+	/**
+	 * Waits for the next message sent to this socket that is not a reply to a call(),
+	 * until a message arrives or the reply timeout for the remote address runs out
+	 * @return message contents
+	 * @throws Exception on timeout or network I/O error
+	 */
+	public ByteBuffer read() throws Exception
+	{
+		return await(readAsync());
+	}
+
+	/**
+	 * Reliably sends a single message without waiting
+	 * @param payload message to send
+	 * @return future completed once the message has been acknowledged
+	 */
+	public CompletableFuture<Void> writeAsync(byte[] payload)
+	{
+		return sendAsync(Collections.singletonList(payload), (byte)0, 0);
+	}
+
+	/**
+	 * Reliably sends a batch of messages without waiting
+	 * @param payloads messages to send
+	 * @return future completed once every message has been acknowledged, or failed
+	 * with an UndeliveredException naming any that could not be delivered
+	 */
+	public CompletableFuture<Void> writeAsync(List<byte[]> payloads)
+	{
+		return sendAsync(payloads, (byte)0, 0);
+	}
+
+	/**
+	 * Sends a request without waiting for the reply
+	 * @param request message to send
+	 * @return future completed with the reply, or failed if the request could not
+	 * be delivered or the reply timeout for the remote address ran out
+	 */
+	public CompletableFuture<ByteBuffer> callAsync(byte[] request)
+	{
+		final CompletableFuture<ByteBuffer> reply = new CompletableFuture<ByteBuffer>();
+		final List<byte[]> messages = new ArrayList<byte[]>(1);
+		final byte[] messageFlags = compress(Collections.singletonList(request), Packet.REQUEST, messages);
 
-		Selector select = null;
-		
-		while(select == null)
+		submit(new Runnable()
 		{
-			try
+			public void run()
 			{
-				select = Selector.open();
+				final int id = nextRequestId++;
+				final Call call = new Call(reply);
+				calls.put(id, call);
+
+				CompletableFuture<Void> delivered = new CompletableFuture<Void>();
+				startSend(messages, messageFlags, id, delivered);
+
+				//Completed on the I/O thread while the socket's timers are being run
+				delivered.whenComplete(new BiConsumer<Void, Throwable>()
+				{
+					public void accept(Void result, Throwable error)
+					{
+						if(error != null)
+						{
+							calls.remove(id);
+							reply.completeExceptionally(error);
+						}
+						else if(!reply.isDone())
+						{
+							//A request that took long to deliver takes about as long to
+							//take in and answer at the other end, which replies to
+							//small requests have not taught the estimator
+							call.deliveredAt = System.nanoTime();
+							call.deadline = call.deliveredAt + (call.deliveredAt - call.sentAt) +
+								estimator.getReplyTimeout() * 1000000L;
+						}
+					}
+				});
 			}
-			catch (Exception e)
+		}, reply);
+
+		return reply;
+	}
+
+	/**
+	 * Reliably sends the reply to a request without waiting
+	 * @param requestId id of the request being answered
+	 * @param payload reply to send
+	 * @return future completed once the reply has been acknowledged
+	 */
+	public CompletableFuture<Void> replyAsync(int requestId, byte[] payload)
+	{
+		return sendAsync(Collections.singletonList(payload), Packet.REPLY, requestId);
+	}
+
+	/**
+	 * Takes the next message sent to this socket that is not a reply to a call,
+	 * without waiting for it
+	 * @return future completed with the message contents, or failed once the reply
+	 * timeout for the remote address runs out
+	 */
+	public CompletableFuture<ByteBuffer> readAsync()
+	{
+		final CompletableFuture<ByteBuffer> message = new CompletableFuture<ByteBuffer>();
+
+		submit(new Runnable()
+		{
+			public void run()
+			{
+				ByteBuffer received = inbound.poll();
+
+				if(received != null)
+				{
+					message.complete(received);
+					return;
+				}
+
+				reads.add(new Read(message, System.nanoTime() + estimator.getReplyTimeout() * 1000000L));
+				loop.activate(RUDPSocket.this);
+			}
+		}, message);
+
+		return message;
+	}
+
+	/**
+	 * Waits for an operation started by one of the asynchronous methods
+	 * @param future operation to wait for
+	 * @return result of the operation
+	 * @throws Exception whatever the operation failed with
+	 */
+	private <T> T await(CompletableFuture<T> future) throws Exception
+	{
+		if(RUDPEventLoop.getDefault().inLoop())
+		{
+			throw new IllegalStateException("Blocking srudp call made from the I/O thread");
+		}
+
+		try
+		{
+			return future.get();
+		}
+		catch (ExecutionException e)
+		{
+			if(e.getCause() instanceof Exception)
+			{
+				throw (Exception)e.getCause();
+			}
+
+			throw e;
+		}
+	}
+
+	/**
+	 * Runs task on the I/O thread once the socket is open, failing future if the
+	 * socket is closed or cannot be opened
+	 * @param task work to do on the I/O thread
+	 * @param future operation the task belongs to
+	 */
+	private void submit(final Runnable task, final CompletableFuture<?> future)
+	{
+		try
+		{
+			final RUDPEventLoop loop;
+
+			synchronized(this)
+			{
+				if(this.loop == null)
+				{
+					this.loop = RUDPEventLoop.getDefault();
+				}
+
+				loop = this.loop;
+			}
+
+			loop.execute(new Runnable()
+			{
+				public void run()
+				{
+					try
+					{
+						if(closed)
+						{
+							throw new Exception("Socket closed");
+						}
+
+						open();
+						task.run();
+					}
+					catch (Exception e)
+					{
+						future.completeExceptionally(e);
+					}
+				}
+			});
+		}
+		catch (Exception e)
+		{
+			future.completeExceptionally(e);
+		}
+	}
+
+	/**
+	 * Opens an endpoint the first time the socket is used.  Sockets that are only
+	 * used to describe who sent a message never open one.  Only called from the I/O
+	 * thread.
+	 * @throws Exception on network I/O error
+	 */
+	private void open() throws Exception
+	{
+		if(sock != null)
+		{
+			return;
+		}
+
+		estimator = RTTEstimator.forAddress(sockAddr);
+		congestion = CongestionWindow.forAddress(sockAddr);
+
+		sock = transport.open(0, false);
+		loop.register(sock, this);
+	}
+
+	/**
+	 * Closes the endpoint and fails everything in flight.  Only called from the I/O
+	 * thread.
+	 */
+	private void shutdown()
+	{
+		if(closed)
+		{
+			return;
+		}
+
+		closed = true;
+		Exception error = new Exception("Socket closed");
+
+		try
+		{
+			if(sock != null)
 			{
+				sock.close();
 			}
 		}
-		
-		SelectionKey key = sock.register(select, SelectionKey.OP_READ);
+		catch (Exception e)
+		{
+		}
+
+		for(Outgoing out : sending)
+		{
+			giveUp(out);
+			out.done.completeExceptionally(error);
+		}
+		for(Call call : calls.values())
+		{
+			call.reply.completeExceptionally(error);
+		}
+		for(Read read : reads)
+		{
+			read.message.completeExceptionally(error);
+		}
+
+		sending.clear();
+		calls.clear();
+		reads.clear();
+		unacked.clear();
+	}
+
+	/**
+	 * Reliably sends a batch of messages without waiting
+	 * @param payloads messages to send
+	 * @param flags flags to send every message with
+	 * @param requestId request id to send every message with
+	 * @return future completed once every message has been acknowledged
+	 */
+	private CompletableFuture<Void> sendAsync(List<byte[]> payloads, byte flags, final int requestId)
+	{
+		final CompletableFuture<Void> done = new CompletableFuture<Void>();
+		final List<byte[]> messages = new ArrayList<byte[]>(payloads.size());
+		final byte[] messageFlags = compress(payloads, flags, messages);
 
-		int retryCount = 0;
-		while(retryCount < 3)
+		submit(new Runnable()
 		{
-			packet.position(0);
-			while(sock.send(packet, sockAddr) == 0)
+			public void run()
+			{
+				startSend(messages, messageFlags, requestId, done);
+			}
+		}, done);
+
+		return done;
+	}
+
+	/**
+	 * Compresses whichever messages reach the compression threshold and get smaller
+	 * for it.  Done on the calling thread so the I/O thread never has to.
+	 * @param payloads messages to send
+	 * @param flags flags to send every message with
+	 * @param messages list to add each message to, compressed or not
+	 * @return flags to send each message with
+	 */
+	private byte[] compress(List<byte[]> payloads, byte flags, List<byte[]> messages)
+	{
+		int threshold = compressionThreshold;
+		byte[] messageFlags = new byte[payloads.size()];
+		int m = 0;
+
+		for(byte[] payload : payloads)
+		{
+			byte[] compressed = (threshold > 0 && payload.length >= threshold) ? Compression.deflate(payload) : null;
+
+			if(compressed != null)
+			{
+				messages.add(compressed);
+				messageFlags[m++] = (byte)(flags | Packet.COMPRESSED);
+			}
+			else
 			{
+				messages.add(payload);
+				messageFlags[m++] = flags;
 			}
-			
-			select.select(500);
-			
-			
-			Iterator it = select.selectedKeys().iterator();
-			if(it.hasNext())
+		}
+
+		return messageFlags;
+	}
+
+	/**
+	 * Starts sending a batch of messages, splitting any that do not fit in one
+	 * datagram into fragments.  Small messages are added to the last bundle queued
+	 * on the socket if it has not been sent yet and has room.  The batch gets its
+	 * own run of sequence numbers for whatever else it needs and shares the window
+	 * with any other batch in flight on the socket.  Only called from the I/O thread.
+	 * @param payloads messages to send
+	 * @param flags flags to send each message with
+	 * @param requestId request id to send every message with
+	 * @param done future to complete once every message has been acknowledged
+	 */
+	private void startSend(List<byte[]> payloads, byte[] flags, int requestId, final CompletableFuture<Void> done)
+	{
+		if(payloads.isEmpty())
+		{
+			done.complete(null);
+			return;
+		}
+
+		Outgoing out = new Outgoing();
+		out.requestId = requestId;
+		out.done = new CompletableFuture<Void>();
+
+		//Earlier batch carrying some of these messages in its bundle
+		Outgoing carrier = null;
+
+		//Batch and run of packets carrying each message
+		final Outgoing[] owners = new Outgoing[payloads.size()];
+		final int[] firstPackets = new int[payloads.size()];
+		final int[] lastPackets = new int[payloads.size()];
+
+		//A bundle may only take more messages until its packet is first sent
+		if(bundling != null && (bundling.next == bundling.fragments.size() || bundling.done.isDone()))
+		{
+			bundling = null;
+			openBundle = null;
+		}
+
+		//Every fragment is a packet of its own, retransmitted on its own
+		out.fragments = new ArrayList<ByteBuffer>();
+		out.fragmentFlags = new ArrayList<Byte>();
+		for(int m = 0; m < payloads.size(); m++)
+		{
+			byte[] payload = payloads.get(m);
+
+			if(payload.length > Packet.MAX_BUNDLED_SIZE)
 			{
-				SelectionKey selected = (SelectionKey)it.next();
-				it.remove();
+				openBundle = null;
+				owners[m] = out;
+				firstPackets[m] = out.fragments.size();
+				Packet.fragment(payload, flags[m], out.fragments, out.fragmentFlags);
+				lastPackets[m] = out.fragments.size() - 1;
+				continue;
+			}
 
-				if (selected.isReadable())
+			if(openBundle != null && Packet.addToBundle(openBundle, payload, flags[m], requestId))
+			{
+				if(bundling != out)
 				{
-					DatagramChannel curSock = (DatagramChannel)selected.channel();
+					carrier = bundling;
+				}
+				owners[m] = bundling;
+				firstPackets[m] = openBundleIndex;
+				lastPackets[m] = openBundleIndex;
+				continue;
+			}
 
-					ByteBuffer response = ByteBuffer.allocate(20);
-					curSock.receive(response);
-					response.flip();
+			openBundle = Packet.newBundle();
+			openBundleIndex = out.fragments.size();
+			bundling = out;
+			Packet.addToBundle(openBundle, payload, flags[m], requestId);
+			out.fragments.add(openBundle);
+			out.fragmentFlags.add(Packet.BUNDLE);
+			owners[m] = out;
+			firstPackets[m] = openBundleIndex;
+			lastPackets[m] = openBundleIndex;
+		}
 
-					if(response.equals(ByteBuffer.wrap(hash)))
+		if(openBundle == null)
+		{
+			bundling = null;
+		}
+
+		int count = out.fragments.size();
+		out.seqs = new int[count];
+		out.sendTimes = new long[count];
+		out.firstSent = new long[count];
+		out.transmissions = new int[count];
+		out.acked = new boolean[count];
+		out.dropped = new boolean[count];
+
+		//Reserving a run of sequence numbers for this batch
+		for(int p = 0; p < count; p++)
+		{
+			out.seqs[p] = nextSeq++;
+			unacked.add(out.seqs[p]);
+		}
+
+		CompletableFuture<Void> sent = (count == 0) ? carrier.done :
+			(carrier == null) ? out.done : CompletableFuture.allOf(carrier.done, out.done);
+
+		//Naming the messages whose packets were given up on once every packet is
+		//accounted for
+		sent.whenComplete(new BiConsumer<Void, Throwable>()
+		{
+			public void accept(Void result, Throwable error)
+			{
+				if(error != null)
+				{
+					done.completeExceptionally((error instanceof CompletionException) ? error.getCause() : error);
+					return;
+				}
+
+				List<Integer> undelivered = new ArrayList<Integer>();
+				for(int m = 0; m < owners.length; m++)
+				{
+					for(int p = firstPackets[m]; p <= lastPackets[m]; p++)
 					{
-						selected.cancel();
-						select.close();
-						return;
+						if(owners[m].dropped[p])
+						{
+							undelivered.add(m);
+							break;
+						}
 					}
 				}
+
+				if(undelivered.isEmpty())
+				{
+					done.complete(null);
+				}
+				else
+				{
+					done.completeExceptionally(new UndeliveredException(undelivered, owners.length));
+				}
 			}
+		});
 
-			retryCount++;
+		if(count == 0)
+		{
+			return;
 		}
-		
-//		System.out.println("[DROPPED] To Port: " + sockAddr.getPort() + " Message ID: " + ((int)payload[0] & 0xFF));
-		
-		key.cancel();
-		select.close();
-		
-		throw new Exception("Dropped packet");
+
+		sending.add(out);
+		loop.activate(this);
 	}
 
-	public ByteBuffer read() throws Exception
+	/**
+	 * Runs the socket's timers: sends whatever fits in the window, retransmits
+	 * packets whose timer ran out and fails calls and reads that waited too long.
+	 * Only called from the I/O thread.
+	 * @param now current System.nanoTime()
+	 * @return System.nanoTime() by which the socket needs to be polled again, or
+	 * Long.MAX_VALUE if nothing is in flight
+	 */
+	long poll(long now)
 	{
-		ByteBuffer packet = ByteBuffer.allocate(64*1024);
-		InetSocketAddress returnAddr;
+		long wake = Long.MAX_VALUE;
+
+		Iterator<Outgoing> outgoing = sending.iterator();
+		while(outgoing.hasNext())
+		{
+			Outgoing out = outgoing.next();
+
+			try
+			{
+				wake = Math.min(wake, pump(out, now));
+			}
+			catch (Exception e)
+			{
+				giveUp(out);
+				out.done.completeExceptionally(e);
+			}
 
-		isReadTimedOut = false;
+			if(out.done.isDone())
+			{
+				outgoing.remove();
+			}
+		}
 
-		Timer readTimeoutTimer = new Timer(false);
-		readTimeoutTimer.schedule(new TimerTask()
+		Iterator<Call> pending = calls.values().iterator();
+		while(pending.hasNext())
 		{
-			public void run()
+			Call call = pending.next();
+
+			if(call.deadline != Long.MAX_VALUE && now - call.deadline >= 0)
+			{
+				pending.remove();
+				estimator.backoffReply();
+				getMetrics().readTimedOut();
+				call.reply.completeExceptionally(new Exception("Read timed out"));
+			}
+			else
 			{
-				isReadTimedOut = true;
+				wake = Math.min(wake, call.deadline);
 			}
 		}
-		, 1500);
 
-		while(true)
+		Iterator<Read> waiting = reads.iterator();
+		while(waiting.hasNext())
 		{
-			packet.clear();
-			while(((returnAddr = (InetSocketAddress)sock.receive(packet)) == null) && !isReadTimedOut)
+			Read read = waiting.next();
+
+			if(now - read.deadline >= 0)
+			{
+				waiting.remove();
+				getMetrics().readTimedOut();
+				read.message.completeExceptionally(new Exception("Read timed out"));
+			}
+			else
 			{
+				wake = Math.min(wake, read.deadline);
 			}
+		}
+
+		return wake;
+	}
 
-			readTimeoutTimer.cancel();
+	/**
+	 * Moves one batch along.  Retransmission timers follow the RTTEstimator for the
+	 * remote address, which is fed from every packet acknowledged on its first
+	 * transmission.  New packets only go out while the CongestionWindow shared by
+	 * every socket talking to the address has room.
+	 * @param out batch being sent
+	 * @param now current System.nanoTime()
+	 * @return System.nanoTime() at which the next packet of the batch times out
+	 * @throws Exception if a packet could not be delivered
+	 */
+	private long pump(Outgoing out, long now) throws Exception
+	{
+		int count = out.seqs.length;
 
-			if(isReadTimedOut)
+		for(int p = out.base; p < out.next; p++)
+		{
+			if(!out.acked[p] && !unacked.contains(out.seqs[p]))
 			{
-				throw new Exception("Read timed out");
+				out.acked[p] = true;
+
+				//Retransmitted packets are ambiguous about which copy was acknowledged
+				if(out.transmissions[p] == 1)
+				{
+					double rtt = (now - out.sendTimes[p]) / 1e6;
+					estimator.addPacketSample(rtt);
+					getMetrics().addRTTSample(rtt);
+					congestion.acknowledged(rtt);
+				}
+				else
+				{
+					congestion.acknowledged(-1);
+				}
+			}
+		}
+
+		while(out.base < out.next && out.acked[out.base])
+		{
+			out.base++;
+		}
+
+		if(out.base == count)
+		{
+			out.done.complete(null);
+			return Long.MAX_VALUE;
+		}
+
+		//Filling the window with packets that have not been sent yet, as far as the
+		//receiver's window and the path's congestion window allow
+		while(out.next < count && isInWindow(out.seqs[out.next]) && congestion.canSend())
+		{
+			if(out.fragmentFlags.get(out.next) == Packet.BUNDLE)
+			{
+				sealBundle(out, out.next);
 			}
 
-			packet.flip();
+			transmit(out.fragmentFlags.get(out.next), out.seqs[out.next], out.requestId, out.fragments.get(out.next));
+			congestion.sent();
+			out.sendTimes[out.next] = now;
+			out.firstSent[out.next] = now;
+			out.transmissions[out.next] = 1;
+			out.next++;
+		}
 
-			if(packet.remaining() < 20)
+		//Retransmitting any packet in the window whose timer ran out
+		long timeout = estimator.getRetransmitTimeout() * 1000000L;
+		long wait = timeout;
+		boolean backedOff = false;
+		for(int p = out.base; p < out.next; p++)
+		{
+			if(out.acked[p])
 			{
 				continue;
 			}
 
-			byte[] payload = new byte[packet.remaining() - 20];
-			packet.get(payload);
-			byte[] hash = new byte[20];
-			packet.get(hash);
-			byte[] calcHash = MessageDigest.getInstance("SHA-1").digest(payload);
+			long elapsed = now - out.sendTimes[p];
+			if(elapsed >= timeout)
+			{
+				if(out.transmissions[p] >= MAX_TRANSMISSIONS)
+				{
+					getMetrics().sendDropped();
+
+					//Nothing acknowledged since the packet was first sent, so the other
+					//end is gone and the rest of the batch would go the same way
+					if(lastAcked - out.firstSent[p] < 0)
+					{
+						throw new Exception("Dropped packet");
+					}
+
+					//Otherwise only the messages this packet carries are lost
+					out.acked[p] = true;
+					out.dropped[p] = true;
+					unacked.remove(out.seqs[p]);
+					congestion.abandoned(1);
+					continue;
+				}
+
+				//A burst of losses only counts as one timeout
+				if(!backedOff)
+				{
+					congestion.lost(estimator.getSmoothedRTT());
+					estimator.backoffRetransmit();
+					timeout = estimator.getRetransmitTimeout() * 1000000L;
+					backedOff = true;
+				}
+
+				transmit(out.fragmentFlags.get(p), out.seqs[p], out.requestId, out.fragments.get(p));
+				getMetrics().retransmitted();
+				out.sendTimes[p] = now;
+				out.transmissions[p]++;
+				elapsed = 0;
+			}
+
+			wait = Math.min(wait, timeout - elapsed);
+		}
+
+		return now + wait;
+	}
+
+	/**
+	 * Closes a bundle about to be sent for the first time.  A bundle that only got
+	 * one message is sent as a plain packet instead.
+	 * @param out batch the bundle belongs to
+	 * @param p index of the bundle within the batch
+	 */
+	private void sealBundle(Outgoing out, int p)
+	{
+		ByteBuffer bundle = out.fragments.get(p);
+
+		if(bundle == openBundle)
+		{
+			bundling = null;
+			openBundle = null;
+		}
+
+		//The first message of a bundle always belongs to the batch that started it,
+		//so the batch's request id still applies
+		ByteBuffer sole = Packet.soleMessage(bundle);
+		if(sole != null)
+		{
+			out.fragments.set(p, sole);
+			out.fragmentFlags.set(p, bundle.get(0));
+		}
+	}
+
+	/**
+	 * Stops waiting for whatever a batch still has outstanding
+	 * @param out batch that failed
+	 */
+	private void giveUp(Outgoing out)
+	{
+		int abandoned = 0;
+
+		for(int p = 0; p < out.seqs.length; p++)
+		{
+			unacked.remove(out.seqs[p]);
+
+			if(p < out.next && !out.acked[p])
+			{
+				out.acked[p] = true;
+				abandoned++;
+			}
+		}
+
+		congestion.abandoned(abandoned);
+	}
+
+	/**
+	 * Whether a packet may be sent without running past the receiver's window
+	 * @param seq sequence number of the packet
+	 * @return true if the packet fits in the window
+	 */
+	private boolean isInWindow(int seq)
+	{
+		return seq - unacked.first() < Packet.WINDOW_SIZE;
+	}
+
+	/**
+	 * Sends one DATA packet to the other end
+	 * @param flags flags to send the packet with
+	 * @param seq sequence number of the packet
+	 * @param requestId request id to send the packet with
+	 * @param payload contents of the packet
+	 * @throws Exception on network I/O error
+	 */
+	private void transmit(byte flags, int seq, int requestId, ByteBuffer payload) throws Exception
+	{
+		int floor = unacked.isEmpty() ? nextSeq : unacked.first();
+
+		Packet data = new Packet(Packet.DATA, flags, streamId, seq, floor, requestId, payload, integrity);
+
+		//Acknowledgements waiting for the same address ride along if the datagram
+		//stays within the size of a full fragment
+		int room = (Packet.MAX_FRAGMENT_SIZE - payload.remaining() - 1) / Packet.ACK_SIZE;
+		AckQueue.getDefault().attach(sockAddr, data, Math.min(room, Packet.MAX_ACKS));
+
+		ByteBuffer packet = data.encode();
+		while(sock.send(packet, sockAddr) == 0)
+		{
+		}
+		getMetrics().datagramSent();
+		BufferPool.getDefault().release(packet);
+	}
+
+	/**
+	 * Processes every datagram waiting on the endpoint.  Only called from the I/O
+	 * thread, once the selector or the endpoint says datagrams arrived.
+	 */
+	void readAvailable()
+	{
+		//Closed sockets may still be queued as readable
+		if(closed)
+		{
+			return;
+		}
+
+		BufferPool pool = BufferPool.getDefault();
+		ByteBuffer packet = pool.acquire();
+		InetSocketAddress returnAddr;
+
+		try
+		{
+			while((returnAddr = sock.receive(packet)) != null)
+			{
+				packet.flip();
+
+				//A packet that was decoded owns its datagram from here on
+				if(handlePacket(packet, returnAddr))
+				{
+					packet = pool.acquire();
+				}
+				else
+				{
+					packet.clear();
+				}
+			}
+		}
+		catch (Exception e)
+		{
+			System.out.println("Exception: " + e);
+			e.printStackTrace();
+		}
+		finally
+		{
+			pool.release(packet);
+		}
+	}
+
+	/**
+	 * Processes a received datagram.  DATA packets have their acknowledgement
+	 * queued and are handed to whichever call they answer, or to a read.  Any
+	 * acknowledgements carried, by DATA or ACK packets alike, release the packets
+	 * they acknowledge.
+	 * @param packet flipped pooled buffer holding the datagram
+	 * @param returnAddr address the datagram came from
+	 * @return true if the datagram was taken over, false if it was corrupt and can
+	 * be reused
+	 * @throws Exception on network I/O error
+	 */
+	private boolean handlePacket(ByteBuffer packet, InetSocketAddress returnAddr) throws Exception
+	{
+		RemoteMetrics source = RemoteMetrics.forAddress(returnAddr);
+		source.datagramReceived();
+
+		Packet received = Packet.decode(packet);
 
-			if(Arrays.equals(hash, calcHash))
+		if(received == null)
+		{
+			source.checksumFailed();
+			return false;
+		}
+
+		if(received.type == Packet.DATA)
+		{
+			releaseAcked(received);
+
+			//A reply still arriving fragment by fragment is not late, however large
+			if(received.is(Packet.REPLY))
 			{
-				ByteBuffer response = ByteBuffer.wrap(hash);
-				while(sock.send(response, returnAddr) == 0)
+				Call call = calls.get(received.requestId);
+
+				if(call != null && call.deliveredAt != 0)
 				{
+					call.deadline = System.nanoTime() + estimator.getReplyTimeout() * 1000000L;
 				}
-				
-				return ByteBuffer.wrap(payload);
+			}
+
+			if(receiver.offer(returnAddr, received))
+			{
+				AckQueue.getDefault().add(sock, returnAddr, received);
+			}
+
+			Receiver.Delivery delivery;
+			while((delivery = receiver.poll()) != null)
+			{
+				Packet data = delivery.packet;
+
+				//Replies to calls nobody is waiting on any more are dropped
+				if(data.is(Packet.REPLY))
+				{
+					Call call = calls.remove(data.requestId);
+
+					if(call == null)
+					{
+						data.release();
+						continue;
+					}
+
+					if(call.deliveredAt != 0)
+					{
+						estimator.addReplySample((System.nanoTime() - call.deliveredAt) / 1e6);
+					}
+					call.reply.complete(data.detachPayload());
+				}
+				else
+				{
+					Read read = reads.poll();
+
+					if(read != null)
+					{
+						read.message.complete(data.detachPayload());
+					}
+					else
+					{
+						inbound.add(data.detachPayload());
+					}
+				}
+			}
+		}
+		else
+		{
+			releaseAcked(received);
+			received.release();
+		}
+
+		return true;
+	}
+
+	/**
+	 * Stops retransmitting the packets of this socket acknowledged by a received
+	 * packet
+	 * @param received packet that may carry acknowledgements
+	 */
+	private void releaseAcked(Packet received)
+	{
+		for(int a = 0; a < received.ackCount; a++)
+		{
+			if(received.ackStreamIds[a] == streamId && unacked.remove(received.ackSeqs[a]))
+			{
+				lastAcked = System.nanoTime();
 			}
 		}
 	}
@@ -0,0 +1,204 @@
+package srudp;
+
+import java.util.*;
+
+/**
+ * Selective repeat receive state for a single stream.  Packets are accepted in
+ * any order within the window, buffered, and released in sequence order.  Senders
+ * advertise the oldest sequence number they are still trying to deliver, which
+ * lets the window skip over packets the sender gave up on.  Fragmented messages
+ * are reassembled here, so only whole messages leave the window.  Packets the
+ * window does not keep or pass on are released back to the buffer pool.
+ */
+class ReceiveWindow
+{
+	private int streamId;
+	private int nextSeq;
+	private Map<Integer, Packet> outOfOrder;
+	private List<Packet> fragments;
+	private int fragmentBytes;
+
+	/**
+	 * Creates the receive state for a stream
+	 * @param streamId stream the window belongs to
+	 * @param firstSeq first sequence number to deliver
+	 */
+	public ReceiveWindow(int streamId, int firstSeq)
+	{
+		this.streamId = streamId;
+		nextSeq = firstSeq;
+		outOfOrder = new HashMap<Integer, Packet>();
+		fragments = new ArrayList<Packet>();
+		fragmentBytes = 0;
+	}
+
+	/**
+	 * Returns the stream this window belongs to
+	 * @return stream id
+	 */
+	public int getStreamId()
+	{
+		return streamId;
+	}
+
+	/**
+	 * Offers a received packet to the window.  Any messages that become deliverable
+	 * in order are appended to deliverable.
+	 * @param packet received DATA packet
+	 * @param deliverable list to add in order messages to
+	 * @return true if the packet should be acknowledged, false if it fell outside
+	 * the window and should be retransmitted by the sender
+	 */
+	public boolean offer(Packet packet, List<Packet> deliverable)
+	{
+		int floor = packet.floor;
+
+		//The sender gave up on everything before floor, so stop waiting for it
+		if(floor - nextSeq > 0)
+		{
+			Iterator<Map.Entry<Integer, Packet>> it = outOfOrder.entrySet().iterator();
+			while(it.hasNext())
+			{
+				Map.Entry<Integer, Packet> entry = it.next();
+				if(entry.getKey() - floor < 0)
+				{
+					entry.getValue().release();
+					it.remove();
+				}
+			}
+
+			//Part of the message being reassembled may be among what was given up on
+			dropFragments();
+
+			nextSeq = floor;
+			release(deliverable);
+		}
+
+		int offset = packet.seq - nextSeq;
+
+		//Already delivered, so the sender missed our acknowledgement
+		if(offset < 0)
+		{
+			packet.release();
+			return true;
+		}
+
+		//Too far ahead of what we have delivered so far
+		if(offset >= Packet.WINDOW_SIZE)
+		{
+			packet.release();
+			return false;
+		}
+
+		if(offset == 0)
+		{
+			deliver(packet, deliverable);
+			nextSeq++;
+			release(deliverable);
+		}
+		else
+		{
+			Packet duplicate = outOfOrder.put(packet.seq, packet);
+			if(duplicate != null)
+			{
+				duplicate.release();
+			}
+		}
+
+		return true;
+	}
+
+	/**
+	 * Releases buffered packets that are now next in line
+	 * @param deliverable list to add in order messages to
+	 */
+	private void release(List<Packet> deliverable)
+	{
+		while(outOfOrder.containsKey(nextSeq))
+		{
+			deliver(outOfOrder.remove(nextSeq), deliverable);
+			nextSeq++;
+		}
+	}
+
+	/**
+	 * Passes on a packet that is next in line, holding fragments back until the
+	 * last one of their message arrives
+	 * @param packet packet that is next in line
+	 * @param deliverable list to add in order messages to
+	 */
+	private void deliver(Packet packet, List<Packet> deliverable)
+	{
+		if(!packet.is(Packet.CONTINUATION))
+		{
+			dropFragments();
+		}
+		//The start of this message was given up on or never seen
+		else if(fragments.isEmpty())
+		{
+			packet.release();
+			return;
+		}
+
+		if(!packet.is(Packet.MORE_FRAGMENTS) && fragments.isEmpty())
+		{
+			deliverable.add(packet);
+			return;
+		}
+
+		fragmentBytes += packet.payload.remaining();
+		if(fragmentBytes > Packet.MAX_MESSAGE_SIZE)
+		{
+			packet.release();
+			dropFragments();
+			return;
+		}
+
+		fragments.add(packet);
+
+		if(!packet.is(Packet.MORE_FRAGMENTS))
+		{
+			deliverable.add(Packet.join(fragments));
+			fragments.clear();
+			fragmentBytes = 0;
+		}
+	}
+
+	/**
+	 * Throws away the message being reassembled
+	 */
+	private void dropFragments()
+	{
+		for(Packet fragment : fragments)
+		{
+			fragment.release();
+		}
+
+		fragments.clear();
+		fragmentBytes = 0;
+	}
+
+	/**
+	 * Releases everything the window is holding on to, once it is no longer used
+	 * @return sequence numbers of the packets that were accepted but never made it
+	 * out of the window
+	 */
+	public List<Integer> discard()
+	{
+		List<Integer> dropped = new ArrayList<Integer>(outOfOrder.keySet());
+
+		for(Packet packet : outOfOrder.values())
+		{
+			packet.release();
+		}
+
+		for(Packet fragment : fragments)
+		{
+			dropped.add(fragment.seq);
+		}
+
+		outOfOrder.clear();
+		dropFragments();
+		return dropped;
+	}
+}
@@ -0,0 +1,160 @@
+package srudp;
+
+import java.net.*;
+import java.util.*;
+
+/**
+ * Tracks the receive window of every stream talking to a socket and queues the
+ * packets that are ready to be handed to the application in order, splitting
+ * bundles back into the messages they carry and inflating compressed ones.
+ * Packets that were already accepted are acknowledged again and dropped, even if
+ * the window they went through has since been forgotten.  A window forgotten
+ * while still holding packets that were not yet delivered gives them up, so their
+ * retransmissions are taken again rather than dropped as duplicates.
+ */
+class Receiver
+{
+	private final int MAX_STREAMS = 1024;
+
+	private Map<InetSocketAddress, ReceiveWindow> windows;
+	private LinkedList<Delivery> ready;
+	private DuplicateCache duplicates;
+
+	/**
+	 * A packet that has been received in order, along with who sent it
+	 */
+	static class Delivery
+	{
+		InetSocketAddress source;
+		Packet packet;
+
+		Delivery(InetSocketAddress source, Packet packet)
+		{
+			this.source = source;
+			this.packet = packet;
+		}
+	}
+
+	public Receiver()
+	{
+		//Least recently used windows are forgotten once too many senders are tracked
+		windows = new LinkedHashMap<InetSocketAddress, ReceiveWindow>(16, 0.75f, true)
+		{
+			protected boolean removeEldestEntry(Map.Entry<InetSocketAddress, ReceiveWindow> eldest)
+			{
+				if(size() > MAX_STREAMS)
+				{
+					discard(eldest.getKey(), eldest.getValue());
+					return true;
+				}
+
+				return false;
+			}
+		};
+		ready = new LinkedList<Delivery>();
+		duplicates = new DuplicateCache();
+	}
+
+	/**
+	 * Handles a DATA packet from source
+	 * @param source address the packet came from
+	 * @param packet decoded packet
+	 * @return true if the packet should be acknowledged
+	 */
+	public boolean offer(InetSocketAddress source, Packet packet)
+	{
+		//The sender missed our acknowledgement of a packet we already accepted
+		if(duplicates.contains(source, packet.streamId, packet.seq))
+		{
+			packet.release();
+			return true;
+		}
+
+		ReceiveWindow window = windows.get(source);
+
+		//A new stream from this address replaces whatever was there before
+		if(window == null || window.getStreamId() != packet.streamId)
+		{
+			if(window != null)
+			{
+				discard(source, window);
+			}
+
+			window = new ReceiveWindow(packet.streamId, packet.floor);
+			windows.put(source, window);
+		}
+
+		List<Packet> deliverable = new LinkedList<Packet>();
+		boolean accepted = window.offer(packet, deliverable);
+
+		if(accepted)
+		{
+			duplicates.add(source, packet.streamId, packet.seq);
+		}
+
+		for(Packet inOrder : deliverable)
+		{
+			if(inOrder.is(Packet.BUNDLE))
+			{
+				List<Packet> messages = new ArrayList<Packet>();
+				Packet.unbundle(inOrder, messages);
+
+				for(Packet message : messages)
+				{
+					deliver(source, message);
+				}
+			}
+			else
+			{
+				deliver(source, inOrder);
+			}
+		}
+
+		return accepted;
+	}
+
+	/**
+	 * Throws away a window that is no longer used.  The sender holds
+	 * acknowledgements for the packets it had buffered but not delivered, so those
+	 * have to be forgotten as duplicates for their retransmissions to get through.
+	 * @param source address the window belongs to
+	 * @param window window to throw away
+	 */
+	private void discard(InetSocketAddress source, ReceiveWindow window)
+	{
+		for(int seq : window.discard())
+		{
+			duplicates.remove(source, window.getStreamId(), seq);
+		}
+	}
+
+	/**
+	 * Queues a whole message for the application, inflating it if it was compressed
+	 * @param source address the message came from
+	 * @param message packet holding the message
+	 */
+	private void deliver(InetSocketAddress source, Packet message)
+	{
+		if(message.is(Packet.COMPRESSED))
+		{
+			message = Packet.inflate(message);
+
+			//Malformed messages can only come from a broken or hostile sender
+			if(message == null)
+			{
+				return;
+			}
+		}
+
+		ready.add(new Delivery(source, message));
+	}
+
+	/**
+	 * Returns the next packet ready for the application
+	 * @return next delivery, or null if none are ready
+	 */
+	public Delivery poll()
+	{
+		return ready.poll();
+	}
+}
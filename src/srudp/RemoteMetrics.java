@@ -0,0 +1,430 @@
+package srudp;
+
+import java.lang.management.*;
+import java.net.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import javax.management.*;
+
+/**
+ * Counters for the traffic exchanged with a single remote address: datagrams sent
+ * and received, retransmissions, datagrams that failed their integrity check,
+ * packets given up on, reads and calls that timed out, and a histogram of round
+ * trip times.  Along with the RTTEstimator and CongestionWindow of the address
+ * they tell a slow path apart from a slow node.
+ *
+ * Metrics are kept for the most recently used addresses, can be looked up
+ * through getMetrics(), and are registered with the platform MBean server as
+ * srudp:type=RemoteMetrics,address="host:port" for as long as they are kept.
+ * Registering goes on in the background, since the MBean server is far too slow
+ * for the I/O threads that first see an address.  Looking up the metrics of a
+ * known address takes no lock, since it happens for every datagram sent and
+ * received; how recently they were used is brought up to date about once a
+ * second.  Evicted metrics stop being counted, so callers look them up for each
+ * use rather than holding on to them.
+ */
+public class RemoteMetrics implements RemoteMetricsMXBean
+{
+	private static final int MAX_METRICS = 4096;
+	private static final long RECENCY_INTERVAL = 1000;	//milliseconds
+
+	//Upper limits of the round trip time histogram buckets; the last one is open
+	private static final double[] RTT_BUCKET_LIMITS =
+		{0.1, 0.25, 0.5, 1, 2.5, 5, 10, 25, 50, 100, 250, 500, 1000, Double.POSITIVE_INFINITY};	//milliseconds
+
+	private static ConcurrentHashMap<InetSocketAddress, RemoteMetrics> metrics =
+		new ConcurrentHashMap<InetSocketAddress, RemoteMetrics>();
+
+	//Same metrics from least to most recently used, guarded by itself
+	private static Map<InetSocketAddress, RemoteMetrics> recent =
+		new LinkedHashMap<InetSocketAddress, RemoteMetrics>(16, 0.75f, true)
+		{
+			protected boolean removeEldestEntry(Map.Entry<InetSocketAddress, RemoteMetrics> eldest)
+			{
+				if(size() <= MAX_METRICS)
+				{
+					return false;
+				}
+
+				metrics.remove(eldest.getKey(), eldest.getValue());
+				eldest.getValue().unregister();
+				return true;
+			}
+		};
+
+	//Registers and unregisters MBeans one at a time, in the order asked
+	private static ExecutorService registrar = Executors.newSingleThreadExecutor(new ThreadFactory()
+	{
+		public Thread newThread(Runnable task)
+		{
+			Thread thread = new Thread(task, "srudp-metrics-registrar");
+			thread.setDaemon(true);
+			return thread;
+		}
+	});
+
+	private InetSocketAddress sockAddr;
+	private volatile ObjectName name;
+	private AtomicLong datagramsSent;
+	private AtomicLong datagramsReceived;
+	private AtomicLong retransmits;
+	private AtomicLong checksumFailures;
+	private AtomicLong droppedSends;
+	private AtomicLong readTimeouts;
+	private AtomicLongArray rttHistogram;
+	private volatile long lastUsed;
+
+	/**
+	 * Returns the metrics for a remote address, creating them if needed
+	 * @param sockAddr remote address
+	 * @return metrics--never null
+	 */
+	public static RemoteMetrics forAddress(InetSocketAddress sockAddr)
+	{
+		RemoteMetrics remote = metrics.get(sockAddr);
+		long now = System.currentTimeMillis();
+
+		if(remote == null)
+		{
+			synchronized(recent)
+			{
+				remote = metrics.get(sockAddr);
+
+				if(remote == null)
+				{
+					remote = new RemoteMetrics(sockAddr);
+					metrics.put(sockAddr, remote);
+					recent.put(sockAddr, remote);
+					remote.register();
+				}
+			}
+		}
+		//Moving the metrics to the most recently used end
+		else if(now - remote.lastUsed > RECENCY_INTERVAL)
+		{
+			remote.lastUsed = now;
+
+			synchronized(recent)
+			{
+				recent.get(sockAddr);
+			}
+		}
+
+		return remote;
+	}
+
+	/**
+	 * Returns the metrics of every address currently kept
+	 * @return copy of the metrics keyed by remote address
+	 */
+	public static Map<InetSocketAddress, RemoteMetrics> getMetrics()
+	{
+		return new HashMap<InetSocketAddress, RemoteMetrics>(metrics);
+	}
+
+	private RemoteMetrics(InetSocketAddress sockAddr)
+	{
+		this.sockAddr = sockAddr;
+		name = null;
+		datagramsSent = new AtomicLong();
+		datagramsReceived = new AtomicLong();
+		retransmits = new AtomicLong();
+		checksumFailures = new AtomicLong();
+		droppedSends = new AtomicLong();
+		readTimeouts = new AtomicLong();
+		rttHistogram = new AtomicLongArray(RTT_BUCKET_LIMITS.length);
+		lastUsed = System.currentTimeMillis();
+	}
+
+	/**
+	 * Makes the metrics visible through JMX in the background.  Metrics that cannot
+	 * be registered are still counted.
+	 */
+	private void register()
+	{
+		final RemoteMetrics remote = this;
+
+		registrar.execute(new Runnable()
+		{
+			public void run()
+			{
+				try
+				{
+					ObjectName registered = new ObjectName("srudp:type=RemoteMetrics,address=" +
+						ObjectName.quote(sockAddr.toString()));
+					ManagementFactory.getPlatformMBeanServer().registerMBean(remote, registered);
+					name = registered;
+				}
+				catch (Exception e)
+				{
+					name = null;
+				}
+			}
+		});
+	}
+
+	/**
+	 * Takes the metrics out of JMX in the background, after any registration still
+	 * waiting to happen
+	 */
+	private void unregister()
+	{
+		registrar.execute(new Runnable()
+		{
+			public void run()
+			{
+				try
+				{
+					if(name != null)
+					{
+						ManagementFactory.getPlatformMBeanServer().unregisterMBean(name);
+					}
+				}
+				catch (Exception e)
+				{
+				}
+			}
+		});
+	}
+
+	void datagramSent()
+	{
+		datagramsSent.incrementAndGet();
+	}
+
+	void datagramReceived()
+	{
+		datagramsReceived.incrementAndGet();
+	}
+
+	void retransmitted()
+	{
+		retransmits.incrementAndGet();
+	}
+
+	void checksumFailed()
+	{
+		checksumFailures.incrementAndGet();
+	}
+
+	void sendDropped()
+	{
+		droppedSends.incrementAndGet();
+	}
+
+	void readTimedOut()
+	{
+		readTimeouts.incrementAndGet();
+	}
+
+	/**
+	 * Records how long a packet took to be acknowledged
+	 * @param rtt round trip time in milliseconds
+	 */
+	void addRTTSample(double rtt)
+	{
+		int bucket = 0;
+		while(rtt > RTT_BUCKET_LIMITS[bucket])
+		{
+			bucket++;
+		}
+
+		rttHistogram.incrementAndGet(bucket);
+	}
+
+	public String getAddress()
+	{
+		return sockAddr.toString();
+	}
+
+	public InetSocketAddress getSockAddr()
+	{
+		return sockAddr;
+	}
+
+	/**
+	 * Number of datagrams sent to the address, DATA and ACK alike, counting every
+	 * transmission
+	 * @return datagram count
+	 */
+	public long getDatagramsSent()
+	{
+		return datagramsSent.get();
+	}
+
+	/**
+	 * Number of datagrams received from the address, including corrupt ones
+	 * @return datagram count
+	 */
+	public long getDatagramsReceived()
+	{
+		return datagramsReceived.get();
+	}
+
+	/**
+	 * Number of DATA packets sent again after their timer ran out
+	 * @return retransmission count
+	 */
+	public long getRetransmits()
+	{
+		return retransmits.get();
+	}
+
+	/**
+	 * Number of datagrams from the address that were truncated or failed their
+	 * integrity check
+	 * @return corrupt datagram count
+	 */
+	public long getChecksumFailures()
+	{
+		return checksumFailures.get();
+	}
+
+	/**
+	 * Number of packets given up on after running out of retransmissions
+	 * @return dropped packet count
+	 */
+	public long getDroppedSends()
+	{
+		return droppedSends.get();
+	}
+
+	/**
+	 * Number of calls and reads that gave up waiting on the address
+	 * @return timeout count
+	 */
+	public long getReadTimeouts()
+	{
+		return readTimeouts.get();
+	}
+
+	/**
+	 * Number of round trip times recorded
+	 * @return sample count
+	 */
+	public long getRTTSamples()
+	{
+		long samples = 0;
+
+		for(int b = 0; b < rttHistogram.length(); b++)
+		{
+			samples += rttHistogram.get(b);
+		}
+
+		return samples;
+	}
+
+	/**
+	 * Upper limit of each round trip time bucket
+	 * @return limits in milliseconds, the last being infinite
+	 */
+	public double[] getRTTBucketLimits()
+	{
+		return RTT_BUCKET_LIMITS.clone();
+	}
+
+	/**
+	 * Number of round trip times that fell in each bucket
+	 * @return count per bucket, matching getRTTBucketLimits()
+	 */
+	public long[] getRTTHistogram()
+	{
+		long[] histogram = new long[rttHistogram.length()];
+
+		for(int b = 0; b < histogram.length; b++)
+		{
+			histogram[b] = rttHistogram.get(b);
+		}
+
+		return histogram;
+	}
+
+	/**
+	 * Median round trip time, to the precision of the histogram
+	 * @return upper limit of the bucket holding the median in milliseconds, or 0 if
+	 * nothing has been measured
+	 */
+	public double getRTTPercentile50()
+	{
+		return percentile(0.50);
+	}
+
+	/**
+	 * 99th percentile round trip time, to the precision of the histogram
+	 * @return upper limit of the bucket holding the percentile in milliseconds, or
+	 * 0 if nothing has been measured
+	 */
+	public double getRTTPercentile99()
+	{
+		return percentile(0.99);
+	}
+
+	private double percentile(double fraction)
+	{
+		long[] histogram = getRTTHistogram();
+		long samples = 0;
+
+		for(long count : histogram)
+		{
+			samples += count;
+		}
+
+		long rank = (long)Math.ceil(samples * fraction);
+		long seen = 0;
+
+		for(int b = 0; b < histogram.length && samples > 0; b++)
+		{
+			seen += histogram[b];
+
+			if(seen >= rank)
+			{
+				return RTT_BUCKET_LIMITS[b];
+			}
+		}
+
+		return 0;
+	}
+
+	/**
+	 * Smoothed round trip time kept by the RTTEstimator of the address
+	 * @return SRTT in milliseconds, or 0 if no estimator is kept for the address
+	 */
+	public double getSmoothedRTT()
+	{
+		RTTEstimator estimator = RTTEstimator.find(sockAddr);
+		return (estimator == null) ? 0 : estimator.getSmoothedRTT();
+	}
+
+	/**
+	 * Retransmission timeout currently used for the address
+	 * @return timeout in milliseconds, or 0 if no estimator is kept for the address
+	 */
+	public long getRetransmitTimeout()
+	{
+		RTTEstimator estimator = RTTEstimator.find(sockAddr);
+		return (estimator == null) ? 0 : estimator.getRetransmitTimeout();
+	}
+
+	/**
+	 * Congestion window currently used for the address
+	 * @return window in packets, or 0 if no window is kept for the address
+	 */
+	public double getCongestionWindow()
+	{
+		CongestionWindow window = CongestionWindow.find(sockAddr);
+		return (window == null) ? 0 : window.getWindow();
+	}
+
+	public String toString()
+	{
+		return sockAddr + " sent=" + getDatagramsSent() +
+			" received=" + getDatagramsReceived() +
+			" retransmits=" + getRetransmits() +
+			" checksumFailures=" + getChecksumFailures() +
+			" droppedSends=" + getDroppedSends() +
+			" readTimeouts=" + getReadTimeouts() +
+			" rttP50=" + getRTTPercentile50() + "ms" +
+			" rttP99=" + getRTTPercentile99() + "ms";
+	}
+}
@@ -0,0 +1,38 @@
+package srudp;
+
+/**
+ * What RemoteMetrics exposes through JMX, under
+ * srudp:type=RemoteMetrics,address="host:port"
+ */
+public interface RemoteMetricsMXBean
+{
+	String getAddress();
+
+	long getDatagramsSent();
+
+	long getDatagramsReceived();
+
+	long getRetransmits();
+
+	long getChecksumFailures();
+
+	long getDroppedSends();
+
+	long getReadTimeouts();
+
+	long getRTTSamples();
+
+	double[] getRTTBucketLimits();
+
+	long[] getRTTHistogram();
+
+	double getRTTPercentile50();
+
+	double getRTTPercentile99();
+
+	double getSmoothedRTT();
+
+	long getRetransmitTimeout();
+
+	double getCongestionWindow();
+}
@@ -0,0 +1,505 @@
+package srudp;
+
+import java.io.*;
+import java.net.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.util.*;
+
+/**
+ * Network inside the process, for exercising srudp and whatever runs on top of it
+ * without touching real sockets.  Every endpoint lives on one simulated host:
+ * datagrams are routed by destination port alone and arrive from the host address
+ * and the port of the sending endpoint.
+ *
+ * Each datagram can be lost, held back for the latency plus up to the jitter, and
+ * with the reordering probability held back further still so that datagrams sent
+ * after it overtake it.  Those choices are drawn from a random generator per pair
+ * of ports, seeded from the network's seed, so the fate of the n-th datagram
+ * between two ports is the same on every run whatever the other traffic.
+ * Delayed datagrams are handed over by a daemon thread.
+ *
+ * Install it with RUDPSocket.setDefaultTransport() before creating any sockets to
+ * run a whole ring of nodes in one JVM.
+ */
+public class SimulatedNetwork implements Transport
+{
+	private final int FIRST_EPHEMERAL_PORT = 49152;
+
+	//Datagrams an endpoint holds before dropping further ones, like a socket buffer
+	private final int RECEIVE_QUEUE_SIZE = 4096;
+
+	private long seed;
+	private InetAddress host;
+	private double loss;
+	private long latency;
+	private long jitter;
+	private double reordering;
+
+	private Map<Integer, SimulatedEndpoint> endpoints;
+	private Map<Long, Random> links;
+	private PriorityQueue<InFlight> inFlight;
+	private long nextInFlight;
+	private int nextEphemeralPort;
+	private Thread thread;
+
+	private long sent;
+	private long dropped;
+	private long delivered;
+
+	/**
+	 * A datagram received by an endpoint
+	 */
+	private static class Datagram
+	{
+		InetSocketAddress source;
+		byte[] contents;
+
+		Datagram(InetSocketAddress source, byte[] contents)
+		{
+			this.source = source;
+			this.contents = contents;
+		}
+	}
+
+	/**
+	 * A datagram on its way to an endpoint
+	 */
+	private static class InFlight implements Comparable<InFlight>
+	{
+		long deliverAt;
+		long order;
+		int port;
+		Datagram datagram;
+
+		InFlight(long deliverAt, long order, int port, Datagram datagram)
+		{
+			this.deliverAt = deliverAt;
+			this.order = order;
+			this.port = port;
+			this.datagram = datagram;
+		}
+
+		public int compareTo(InFlight other)
+		{
+			if(deliverAt != other.deliverAt)
+			{
+				return (deliverAt - other.deliverAt < 0) ? -1 : 1;
+			}
+
+			return Long.compare(order, other.order);
+		}
+	}
+
+	/**
+	 * Endpoint bound to a port of the simulated host
+	 */
+	private class SimulatedEndpoint implements Endpoint
+	{
+		private int port;
+		private boolean blocking;
+		private boolean open;
+		private ArrayDeque<Datagram> received;
+		private Runnable listener;
+
+		SimulatedEndpoint(int port, boolean blocking)
+		{
+			this.port = port;
+			this.blocking = blocking;
+			open = true;
+			received = new ArrayDeque<Datagram>();
+			listener = null;
+		}
+
+		public int send(ByteBuffer datagram, InetSocketAddress dest) throws IOException
+		{
+			synchronized(this)
+			{
+				if(!open)
+				{
+					throw new ClosedChannelException();
+				}
+			}
+
+			int length = datagram.remaining();
+			byte[] contents = new byte[length];
+			datagram.get(contents);
+
+			route(port, dest.getPort(), new Datagram(new InetSocketAddress(host, port), contents));
+			return length;
+		}
+
+		public InetSocketAddress receive(ByteBuffer buffer) throws IOException
+		{
+			Datagram datagram;
+
+			synchronized(this)
+			{
+				while(true)
+				{
+					if(!open)
+					{
+						throw new ClosedChannelException();
+					}
+
+					if(!received.isEmpty() || !blocking)
+					{
+						break;
+					}
+
+					try
+					{
+						wait();
+					}
+					catch (InterruptedException e)
+					{
+						throw new ClosedByInterruptException();
+					}
+				}
+
+				datagram = received.poll();
+			}
+
+			if(datagram == null)
+			{
+				return null;
+			}
+
+			buffer.put(datagram.contents, 0, Math.min(datagram.contents.length, buffer.remaining()));
+			return datagram.source;
+		}
+
+		public SelectableChannel getChannel()
+		{
+			return null;
+		}
+
+		public synchronized void setListener(Runnable listener)
+		{
+			this.listener = listener;
+		}
+
+		public synchronized boolean isOpen()
+		{
+			return open;
+		}
+
+		public void close()
+		{
+			synchronized(this)
+			{
+				if(!open)
+				{
+					return;
+				}
+
+				open = false;
+				received.clear();
+				listener = null;
+				notifyAll();
+			}
+
+			synchronized(SimulatedNetwork.this)
+			{
+				endpoints.remove(port);
+			}
+		}
+
+		/**
+		 * Queues an arriving datagram to be received
+		 * @param datagram datagram that arrived
+		 * @return false if the endpoint is closed or has no room for it
+		 */
+		boolean deliver(Datagram datagram)
+		{
+			Runnable notify = null;
+
+			synchronized(this)
+			{
+				if(!open || received.size() >= RECEIVE_QUEUE_SIZE)
+				{
+					return false;
+				}
+
+				if(received.isEmpty())
+				{
+					notify = listener;
+				}
+
+				received.add(datagram);
+				notifyAll();
+			}
+
+			if(notify != null)
+			{
+				notify.run();
+			}
+
+			return true;
+		}
+	}
+
+	/**
+	 * Creates a network that delivers everything straight away
+	 * @param seed seed for the choices made about each datagram
+	 * @throws UnknownHostException if the local host address could not be found
+	 */
+	public SimulatedNetwork(long seed) throws UnknownHostException
+	{
+		this(seed, InetAddress.getLocalHost());
+	}
+
+	/**
+	 * Creates a network that delivers everything straight away
+	 * @param seed seed for the choices made about each datagram
+	 * @param host address datagrams appear to come from
+	 */
+	public SimulatedNetwork(long seed, InetAddress host)
+	{
+		this.seed = seed;
+		this.host = host;
+		loss = 0;
+		latency = 0;
+		jitter = 0;
+		reordering = 0;
+
+		endpoints = new HashMap<Integer, SimulatedEndpoint>();
+		links = new HashMap<Long, Random>();
+		inFlight = new PriorityQueue<InFlight>();
+		nextInFlight = 0;
+		nextEphemeralPort = FIRST_EPHEMERAL_PORT;
+		thread = null;
+
+		sent = 0;
+		dropped = 0;
+		delivered = 0;
+	}
+
+	public synchronized Endpoint open(int port, boolean blocking) throws IOException
+	{
+		if(port == 0)
+		{
+			//Handing out free ports in turn, as an operating system would
+			for(int tries = 0; tries < 65536 && (port == 0 || endpoints.containsKey(port)); tries++)
+			{
+				port = nextEphemeralPort;
+				nextEphemeralPort = (nextEphemeralPort == 65535) ? FIRST_EPHEMERAL_PORT : nextEphemeralPort + 1;
+			}
+		}
+
+		if(endpoints.containsKey(port))
+		{
+			throw new BindException("Port " + port + " is already in use");
+		}
+
+		SimulatedEndpoint endpoint = new SimulatedEndpoint(port, blocking);
+		endpoints.put(port, endpoint);
+		return endpoint;
+	}
+
+	/**
+	 * Sets the chance of a datagram being lost
+	 * @param loss probability from 0 to 1
+	 */
+	public synchronized void setLoss(double loss)
+	{
+		this.loss = loss;
+	}
+
+	/**
+	 * Sets how long every datagram takes to arrive
+	 * @param latency one way delay in milliseconds
+	 */
+	public synchronized void setLatency(long latency)
+	{
+		this.latency = latency;
+	}
+
+	/**
+	 * Sets how much longer than the latency a datagram may take to arrive
+	 * @param jitter largest extra delay in milliseconds
+	 */
+	public synchronized void setJitter(long jitter)
+	{
+		this.jitter = jitter;
+	}
+
+	/**
+	 * Sets the chance of a datagram being held back long enough for datagrams sent
+	 * after it to arrive first
+	 * @param reordering probability from 0 to 1
+	 */
+	public synchronized void setReordering(double reordering)
+	{
+		this.reordering = reordering;
+	}
+
+	/**
+	 * Number of datagrams sent through the network
+	 * @return datagram count
+	 */
+	public synchronized long getSent()
+	{
+		return sent;
+	}
+
+	/**
+	 * Number of datagrams lost, sent to a port nobody was on or dropped by a full
+	 * endpoint
+	 * @return datagram count
+	 */
+	public synchronized long getDropped()
+	{
+		return dropped;
+	}
+
+	/**
+	 * Number of datagrams handed to an endpoint
+	 * @return datagram count
+	 */
+	public synchronized long getDelivered()
+	{
+		return delivered;
+	}
+
+	/**
+	 * Decides the fate of a datagram and sends it on its way
+	 * @param from port of the sending endpoint
+	 * @param to port of the receiving endpoint
+	 * @param datagram datagram being sent
+	 */
+	private void route(int from, int to, Datagram datagram)
+	{
+		SimulatedEndpoint now = null;
+
+		synchronized(this)
+		{
+			sent++;
+
+			Long link = ((long)from << 32) | to;
+			Random random = links.get(link);
+			if(random == null)
+			{
+				random = new Random(seed * 31 + link);
+				links.put(link, random);
+			}
+
+			//Always drawing the same numbers so one setting does not shift the others
+			boolean lost = random.nextDouble() < loss;
+			long delay = latency + (long)(random.nextDouble() * jitter);
+			if(random.nextDouble() < reordering)
+			{
+				delay += latency + jitter + 1;
+			}
+
+			if(lost)
+			{
+				dropped++;
+				return;
+			}
+
+			if(delay > 0)
+			{
+				inFlight.add(new InFlight(System.nanoTime() + delay * 1000000L, nextInFlight++, to, datagram));
+				startThread();
+				notifyAll();
+				return;
+			}
+
+			now = endpoints.get(to);
+		}
+
+		hand(now, datagram);
+	}
+
+	/**
+	 * Gives a datagram that arrived to its endpoint
+	 * @param endpoint endpoint on the destination port, or null if there is none
+	 * @param datagram datagram that arrived
+	 */
+	private void hand(SimulatedEndpoint endpoint, Datagram datagram)
+	{
+		boolean accepted = (endpoint != null) && endpoint.deliver(datagram);
+
+		synchronized(this)
+		{
+			if(accepted)
+			{
+				delivered++;
+			}
+			else
+			{
+				dropped++;
+			}
+		}
+	}
+
+	/**
+	 * Starts the thread handing over delayed datagrams, the first time one is sent
+	 */
+	private void startThread()
+	{
+		if(thread != null)
+		{
+			return;
+		}
+
+		thread = new Thread(new Runnable()
+		{
+			public void run()
+			{
+				while(true)
+				{
+					try
+					{
+						deliverDue();
+					}
+					catch (InterruptedException e)
+					{
+						return;
+					}
+				}
+			}
+		}, "srudp simulated network");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Waits for the next delayed datagrams to fall due and hands them over
+	 * @throws InterruptedException if the thread was interrupted
+	 */
+	private void deliverDue() throws InterruptedException
+	{
+		List<InFlight> due = new ArrayList<InFlight>();
+		List<SimulatedEndpoint> targets = new ArrayList<SimulatedEndpoint>();
+
+		synchronized(this)
+		{
+			while(inFlight.isEmpty())
+			{
+				wait();
+			}
+
+			long wait = inFlight.peek().deliverAt - System.nanoTime();
+			if(wait > 0)
+			{
+				wait((wait + 999999) / 1000000L);
+				return;
+			}
+
+			long now = System.nanoTime();
+			while(!inFlight.isEmpty() && inFlight.peek().deliverAt - now <= 0)
+			{
+				InFlight next = inFlight.poll();
+				due.add(next);
+				targets.add(endpoints.get(next.port));
+			}
+		}
+
+		for(int d = 0; d < due.size(); d++)
+		{
+			hand(targets.get(d), due.get(d).datagram);
+		}
+	}
+}
@@ -0,0 +1,21 @@
+package srudp;
+
+import java.io.*;
+
+/**
+ * Where srudp gets its datagrams from.  UDPTransport sends them over the network;
+ * SimulatedNetwork passes them between endpoints in the same process, losing,
+ * delaying and reordering them as configured.  Sockets use the transport set with
+ * RUDPSocket.setDefaultTransport() unless they are given one.
+ */
+public interface Transport
+{
+	/**
+	 * Opens an endpoint to send and receive datagrams through
+	 * @param port port to receive on, or 0 for any free port
+	 * @param blocking whether receive() waits for a datagram to arrive
+	 * @return endpoint
+	 * @throws IOException if the endpoint could not be opened
+	 */
+	Endpoint open(int port, boolean blocking) throws IOException;
+}
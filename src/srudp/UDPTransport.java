@@ -0,0 +1,73 @@
+package srudp;
+
+import java.io.*;
+import java.net.*;
+import java.nio.*;
+import java.nio.channels.*;
+
+/**
+ * Sends datagrams over the network with a DatagramChannel per endpoint
+ */
+public class UDPTransport implements Transport
+{
+	//Room in the kernel for bursts from many senders while the readers of a
+	//listening port catch up
+	private final int RECEIVE_BUFFER_SIZE = 4 * 1024 * 1024;
+
+	/**
+	 * Endpoint backed by a DatagramChannel
+	 */
+	private static class UDPEndpoint implements Endpoint
+	{
+		private DatagramChannel channel;
+
+		UDPEndpoint(DatagramChannel channel)
+		{
+			this.channel = channel;
+		}
+
+		public int send(ByteBuffer datagram, InetSocketAddress dest) throws IOException
+		{
+			return channel.send(datagram, dest);
+		}
+
+		public InetSocketAddress receive(ByteBuffer buffer) throws IOException
+		{
+			return (InetSocketAddress)channel.receive(buffer);
+		}
+
+		public SelectableChannel getChannel()
+		{
+			return channel.isBlocking() ? null : channel;
+		}
+
+		public void setListener(Runnable listener)
+		{
+		}
+
+		public boolean isOpen()
+		{
+			return channel.isOpen();
+		}
+
+		public void close() throws IOException
+		{
+			channel.close();
+		}
+	}
+
+	public Endpoint open(int port, boolean blocking) throws IOException
+	{
+		DatagramChannel channel = DatagramChannel.open();
+		channel.configureBlocking(blocking);
+
+		//Endpoints that only send are bound to a free port on first use
+		if(port != 0)
+		{
+			channel.setOption(StandardSocketOptions.SO_RCVBUF, RECEIVE_BUFFER_SIZE);
+			channel.socket().bind(new InetSocketAddress(port));
+		}
+
+		return new UDPEndpoint(channel);
+	}
+}
@@ -0,0 +1,34 @@
+package srudp;
+
+import java.util.*;
+
+/**
+ * Thrown when some of the messages of a batch could not be delivered though the
+ * other end kept acknowledging the rest.  Each message named was carried at least
+ * in part by a packet that ran out of retransmissions; it may still have arrived
+ * if only its acknowledgements were lost, so resending it must be harmless.
+ */
+public class UndeliveredException extends Exception
+{
+	private List<Integer> undelivered;
+
+	/**
+	 * @param undelivered positions in the batch of the messages not delivered, in
+	 * ascending order
+	 * @param messages number of messages in the batch
+	 */
+	public UndeliveredException(List<Integer> undelivered, int messages)
+	{
+		super("Dropped " + undelivered.size() + " of " + messages + " messages");
+		this.undelivered = Collections.unmodifiableList(undelivered);
+	}
+
+	/**
+	 * Positions in the batch of the messages that were not delivered
+	 * @return positions in ascending order
+	 */
+	public List<Integer> getUndelivered()
+	{
+		return undelivered;
+	}
+}
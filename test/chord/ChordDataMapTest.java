@@ -0,0 +1,243 @@
+package chord;
+
+import static org.junit.Assert.*;
+
+import java.nio.*;
+import java.util.*;
+
+import org.junit.*;
+
+/**
+ * Checks ChordDataMap against a HashMap, with keys picked to land in the same
+ * stripe and slot so probing, growing and the shifting done by removal all get
+ * exercised.
+ */
+public class ChordDataMapTest
+{
+	private ChordDataMap map;
+
+	@Before
+	public void create()
+	{
+		map = new ChordDataMap();
+	}
+
+	/**
+	 * Key whose middle and low words cancel out in ChordId.hashCode(), so every key
+	 * made with the same high word lands in the same stripe and slot
+	 */
+	private static ChordData colliding(long high, int n)
+	{
+		ByteBuffer hash = ByteBuffer.allocate(ChordId.SIZE);
+		hash.putLong(high);
+		hash.putLong(n);
+		hash.putInt(n);
+
+		return new ChordData(hash.array(), new byte[] {(byte)n});
+	}
+
+	private static ChordData random(Random random)
+	{
+		byte[] hash = new byte[ChordId.SIZE];
+		random.nextBytes(hash);
+
+		return new ChordData(hash, new byte[] {(byte)random.nextInt()});
+	}
+
+	@Test
+	public void putGetRemove()
+	{
+		ChordData data = random(new Random(1));
+
+		assertNull(map.put(data));
+		assertSame(data, map.get(data.getId()));
+		assertEquals(1, map.size());
+
+		assertSame(data, map.remove(data.getId()));
+		assertNull(map.get(data.getId()));
+		assertNull(map.remove(data.getId()));
+		assertEquals(0, map.size());
+	}
+
+	@Test
+	public void putReplacesButPutIfAbsentDoesNot()
+	{
+		ChordData first = colliding(0, 7);
+		ChordData second = colliding(0, 7);
+
+		assertNull(map.putIfAbsent(first));
+		assertSame(first, map.putIfAbsent(second));
+		assertSame(first, map.get(first.getId()));
+
+		assertSame(first, map.put(second));
+		assertSame(second, map.get(first.getId()));
+		assertEquals(1, map.size());
+	}
+
+	@Test
+	public void collisions()
+	{
+		//All in one probe sequence, and enough of them to grow the stripe several times
+		List<ChordData> added = new ArrayList<ChordData>();
+		for(int n = 1; n <= 200; n++)
+		{
+			ChordData data = colliding(0, n);
+			assertNull(map.put(data));
+			added.add(data);
+		}
+
+		for(ChordData data : added)
+		{
+			assertSame(data, map.get(data.getId()));
+		}
+
+		assertNull(map.get(colliding(0, 1000).getId()));
+		assertEquals(added.size(), map.size());
+	}
+
+	@Test
+	public void removeFromMiddleOfProbeSequence()
+	{
+		List<ChordData> added = new ArrayList<ChordData>();
+		for(int n = 1; n <= 12; n++)
+		{
+			ChordData data = colliding(0, n);
+			map.put(data);
+			added.add(data);
+		}
+
+		//Each removal leaves a gap that the entries probed past it have to close
+		for(int n = 0; n < added.size(); n += 2)
+		{
+			assertSame(added.get(n), map.remove(added.get(n).getId()));
+		}
+
+		for(int n = 0; n < added.size(); n++)
+		{
+			if(n % 2 == 0)
+			{
+				assertNull(map.get(added.get(n).getId()));
+			}
+			else
+			{
+				assertSame(added.get(n), map.get(added.get(n).getId()));
+			}
+		}
+
+		assertEquals(added.size() / 2, map.size());
+	}
+
+	@Test
+	public void resizing()
+	{
+		Random random = new Random(2);
+		Map<ChordId, ChordData> expected = new HashMap<ChordId, ChordData>();
+
+		for(int n = 0; n < 20000; n++)
+		{
+			ChordData data = random(random);
+			map.put(data);
+			expected.put(data.getId(), data);
+		}
+
+		assertEquals(expected.size(), map.size());
+		assertEquals(expected.size(), map.values().size());
+
+		for(ChordData data : expected.values())
+		{
+			assertSame(data, map.get(data.getId()));
+		}
+	}
+
+	@Test
+	public void matchesHashMap()
+	{
+		//Keys homed on the first two and last two slots of one stripe, so they pile
+		//up in long clusters that wrap round the end of its table
+		long[] highs = {0, 1, 0x0ffffffeL, 0x0fffffffL};
+		Random random = new Random(3);
+		Map<ChordId, ChordData> expected = new HashMap<ChordId, ChordData>();
+
+		for(int op = 0; op < 100000; op++)
+		{
+			ChordData data = colliding(highs[random.nextInt(highs.length)], random.nextInt(300));
+
+			switch(random.nextInt(3))
+			{
+				case 0:
+					assertSame(expected.put(data.getId(), data), map.put(data));
+					break;
+				case 1:
+					assertSame(expected.remove(data.getId()), map.remove(data.getId()));
+					break;
+				default:
+					assertSame(expected.get(data.getId()), map.get(data.getId()));
+					break;
+			}
+		}
+
+		assertEquals(expected.size(), map.size());
+		assertEquals(new HashSet<ChordData>(expected.values()), new HashSet<ChordData>(map.values()));
+	}
+
+	@Test
+	public void rangeMatchesIsInRange()
+	{
+		Random random = new Random(4);
+		List<ChordData> added = new ArrayList<ChordData>();
+
+		for(int n = 0; n < 500; n++)
+		{
+			ChordData data = random(random);
+			map.put(data);
+			added.add(data);
+		}
+
+		//Half the bounds are keys held, so inclusive and exclusive ends both matter,
+		//and one in ten ranges has equal bounds
+		for(int r = 0; r < 1000; r++)
+		{
+			ChordId lower = (r % 2 == 0) ? added.get(random.nextInt(added.size())).getId() : random(random).getId();
+			ChordId upper = (r % 10 == 0) ? lower : added.get(random.nextInt(added.size())).getId();
+			boolean lowerInclusive = random.nextBoolean();
+			boolean upperInclusive = random.nextBoolean();
+
+			List<ChordData> range = map.range(lower, lowerInclusive, upper, upperInclusive);
+
+			Set<ChordData> expected = new HashSet<ChordData>();
+			for(ChordData data : added)
+			{
+				if(data.getId().isInRange(lower, lowerInclusive, upper, upperInclusive))
+				{
+					expected.add(data);
+				}
+			}
+
+			assertEquals(expected, new HashSet<ChordData>(range));
+			assertEquals(expected.size(), range.size());
+
+			//Clockwise from the lower bound, so at most one step back past zero
+			int wraps = 0;
+			for(int d = 1; d < range.size(); d++)
+			{
+				if(range.get(d - 1).getId().compareTo(range.get(d).getId()) > 0)
+				{
+					wraps++;
+				}
+			}
+			assertTrue(wraps <= 1);
+		}
+	}
+
+	@Test
+	public void rangeLeavesOutRemovedKeys()
+	{
+		ChordData kept = colliding(0, 1);
+		ChordData removed = colliding(0, 2);
+		map.put(kept);
+		map.put(removed);
+		map.remove(removed.getId());
+
+		assertEquals(Collections.singletonList(kept), map.range(kept.getId(), true, kept.getId(), true));
+	}
+}
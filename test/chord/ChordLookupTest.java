@@ -0,0 +1,128 @@
+package chord;
+
+import static org.junit.Assert.*;
+
+import java.net.*;
+import java.security.*;
+import java.util.*;
+
+import org.junit.*;
+
+import srudp.*;
+
+/**
+ * Runs a ring of nodes over a SimulatedNetwork, stops some of them as if they had
+ * crashed, and checks that once the ring has repaired itself every lookup names
+ * the live node that now owns the key.
+ */
+public class ChordLookupTest
+{
+	private static final int NODES = 8;
+	private static final int BASE_PORT = 21000;
+	private static final int JOIN_DELAY = 300;		//milliseconds
+	private static final int SETTLE_DELAY = 20000;	//milliseconds
+	private static final int REPAIR_DELAY = 15000;	//milliseconds
+	private static final int LOOKUPS = 200;
+
+	private List<Chord> nodes;
+
+	@Before
+	public void createRing() throws Exception
+	{
+		SimulatedNetwork network = new SimulatedNetwork(42);
+		network.setLatency(2);
+		network.setJitter(1);
+		RUDPSocket.setDefaultTransport(network);
+
+		nodes = new ArrayList<Chord>();
+
+		Chord first = new Chord(BASE_PORT);
+		first.create();
+		first.listen();
+		nodes.add(first);
+
+		for(int n = 1; n < NODES; n++)
+		{
+			Chord node = new Chord(BASE_PORT + n);
+			node.listen();
+			node.join(new ChordNode(InetAddress.getLocalHost(), (short)BASE_PORT));
+			nodes.add(node);
+
+			Thread.sleep(JOIN_DELAY);
+		}
+
+		Thread.sleep(SETTLE_DELAY);
+	}
+
+	/**
+	 * Port of the first live node at or after the key going clockwise round the ring
+	 */
+	private static int owner(ChordId key, Set<Integer> dead) throws Exception
+	{
+		int owner = -1, first = -1;
+		ChordId ownerId = null, firstId = null;
+
+		for(int n = 0; n < NODES; n++)
+		{
+			if(dead.contains(n))
+			{
+				continue;
+			}
+
+			ChordId id = new ChordNode(InetAddress.getLocalHost(), (short)(BASE_PORT + n)).getId();
+
+			if(firstId == null || id.compareTo(firstId) < 0)
+			{
+				firstId = id;
+				first = BASE_PORT + n;
+			}
+
+			if(id.compareTo(key) >= 0 && (ownerId == null || id.compareTo(ownerId) < 0))
+			{
+				ownerId = id;
+				owner = BASE_PORT + n;
+			}
+		}
+
+		return (owner >= 0) ? owner : first;
+	}
+
+	@Test
+	public void lookupsFindLiveOwnerAfterFailures() throws Exception
+	{
+		Random random = new Random(3);
+
+		//Never the node every other one joined through
+		Set<Integer> dead = new HashSet<Integer>();
+		while(dead.size() < 2)
+		{
+			int n = 1 + random.nextInt(NODES - 1);
+			if(dead.add(n))
+			{
+				nodes.get(n).close();
+			}
+		}
+
+		Thread.sleep(REPAIR_DELAY);
+
+		int right = 0;
+		for(int k = 0; k < LOOKUPS; k++)
+		{
+			int from;
+			do
+			{
+				from = random.nextInt(NODES);
+			}
+			while(dead.contains(from));
+
+			ChordId key = new ChordId(MessageDigest.getInstance("SHA-1").digest(("key" + k).getBytes()));
+
+			if(nodes.get(from).findSuccessor(key).getPort() == (short)owner(key, dead))
+			{
+				right++;
+			}
+		}
+
+		assertEquals(LOOKUPS, right);
+	}
+}
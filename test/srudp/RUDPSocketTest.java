@@ -0,0 +1,120 @@
+package srudp;
+
+import static org.junit.Assert.*;
+
+import java.net.*;
+import java.nio.*;
+import java.util.*;
+
+import org.junit.*;
+
+/**
+ * Round trips through RUDPSocket against an echoing RUDPServerSocket across a
+ * SimulatedNetwork with a few milliseconds of latency, so large messages take
+ * many round trips to cross.
+ */
+public class RUDPSocketTest
+{
+	private RUDPServerSocket server;
+	private Thread echo;
+	private RUDPSocket client;
+
+	@Before
+	public void start() throws Exception
+	{
+		final int port = 9000;
+		SimulatedNetwork network = new SimulatedNetwork(42);
+		network.setLatency(5);
+		server = new RUDPServerSocket(port, 1, network);
+
+		//Answering every request with its own contents, each on a thread of its own
+		//as Chord's workers would
+		echo = new Thread(new Runnable()
+		{
+			public void run()
+			{
+				try
+				{
+					while(true)
+					{
+						RUDPMessage message = server.receive();
+						final RUDPSocket sender = message.getSender();
+						ByteBuffer payload = message.getPayload();
+						final byte[] request = new byte[payload.remaining()];
+						payload.get(request);
+						message.release();
+
+						new Thread(new Runnable()
+						{
+							public void run()
+							{
+								try
+								{
+									sender.reply(sender.getRequestId(), request);
+								}
+								catch (Exception e)
+								{
+								}
+							}
+						}).start();
+					}
+				}
+				catch (Exception e)
+				{
+				}
+			}
+		});
+		echo.setDaemon(true);
+		echo.start();
+
+		client = new RUDPSocket(InetAddress.getLocalHost(), port, network);
+	}
+
+	@After
+	public void stop() throws Exception
+	{
+		client.close();
+		server.close();
+	}
+
+	private static byte[] message(int size, Random random)
+	{
+		//Compressible, so the large messages go through Compression as well
+		byte[] message = new byte[size];
+		for(int b = 0; b < size; b++)
+		{
+			message[b] = (byte)random.nextInt(16);
+		}
+
+		return message;
+	}
+
+	private void assertEchoed(byte[] request) throws Exception
+	{
+		ByteBuffer reply = client.call(request);
+		byte[] echoed = new byte[reply.remaining()];
+		reply.get(echoed);
+
+		assertArrayEquals(request, echoed);
+	}
+
+	@Test
+	public void smallCall() throws Exception
+	{
+		assertEchoed("ping".getBytes());
+	}
+
+	@Test
+	public void largeCallAfterSmallCalls() throws Exception
+	{
+		Random random = new Random(1);
+
+		//Teaching the estimator a reply timeout that suits small replies only
+		for(int c = 0; c < 30; c++)
+		{
+			assertEchoed(message(5 * 1024, random));
+		}
+
+		assertEchoed(message(2 * 1024 * 1024, random));
+	}
+}